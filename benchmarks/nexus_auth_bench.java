@@ -0,0 +1,72 @@
+// Nexus - AuthBenchmark.java
+// Created by Michael Semera
+// JMH: login cost with four clients logging in at once, cached and fully hashed
+//
+// Run with JMH on the classpath:
+//   java -cp bin:jmh.jar org.openjdk.jmh.Main AuthBenchmark
+
+package com.michaelsemera.nexus;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// ==================== AuthBenchmark Class ====================
+// cachedLogin is a reconnect within auth-cache-seconds, which completes on
+// the caller. hashedLogin runs the full PBKDF2 check on the auth pool, so
+// four callers queue behind its threads; iterations is auth-iterations.
+// The per-address throttle is set out of reach.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class AuthBenchmark {
+    
+    @Param({"10000", "100000"})
+    int iterations;
+    
+    private UserStore users;
+    private Authenticator cached;
+    private Authenticator uncached;
+    
+    @Setup
+    public void setUp() throws IOException {
+        users = UserStore.open(ServerConfig.fromArgs(new String[0]));
+        cached = authenticator("300");
+        uncached = authenticator("0");
+        cached.addUser("alice", "password");
+        
+        // Prime the cache
+        cached.login("127.0.0.1", "alice", "password").join();
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        cached.shutdown();
+        uncached.shutdown();
+        users.close();
+    }
+    
+    @Benchmark
+    public Authenticator.Result cachedLogin() {
+        return cached.login("127.0.0.1", "alice", "password").join();
+    }
+    
+    @Benchmark
+    public Authenticator.Result hashedLogin() {
+        return uncached.login("127.0.0.1", "alice", "password").join();
+    }
+    
+    private Authenticator authenticator(String cacheSeconds) {
+        return new Authenticator(ServerConfig.fromArgs(new String[] {
+            "--auth-iterations=" + iterations,
+            "--auth-cache-seconds=" + cacheSeconds,
+            "--auth-attempt-burst=" + Integer.MAX_VALUE,
+            "--auth-attempts-per-minute=" + Integer.MAX_VALUE
+        }), users);
+    }
+}
@@ -0,0 +1,109 @@
+// Nexus - BroadcastBenchmark.java
+// Created by Michael Semera
+// JMH: cost of one broadcast as the room grows, per-recipient encode vs encode-once
+//
+// Run with JMH on the classpath:
+//   java -cp bin:jmh.jar org.openjdk.jmh.Main BroadcastBenchmark
+
+package com.michaelsemera.nexus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// ==================== BroadcastBenchmark Class ====================
+// Recipients are in-memory sinks, so the numbers isolate encoding and
+// copying from kernel socket costs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    
+    @Param({"10", "100", "1000", "10000"})
+    int members;
+    
+    @Param({"1", "2", "3"})
+    int protocolVersion;
+    
+    private MessageCodec codec;
+    private ChatMessage message;
+    private SinkStream[] recipients;
+    private OutboundQueue[] queues;
+    
+    @Setup
+    public void setUp() {
+        codec = FrameCodec.forVersion(protocolVersion);
+        message = new ChatMessage(MessageType.CHAT, "alice",
+            "Has anyone tried the new build? Startup feels a lot faster.", System.currentTimeMillis());
+            
+        recipients = new SinkStream[members];
+        queues = new OutboundQueue[members];
+        for (int i = 0; i < members; i++) {
+            recipients[i] = new SinkStream();
+            queues[i] = new OutboundQueue(new SlowConsumerPolicy(64, 256, 4096));
+        }
+    }
+    
+    // Old path: every recipient serializes the message again
+    @Benchmark
+    public void encodePerRecipient(Blackhole blackhole) throws IOException {
+        for (SinkStream recipient : recipients) {
+            codec.writeFrame(recipient, message);
+        }
+        blackhole.consume(recipients[0].bytes);
+    }
+    
+    // New path: one encode, the same bytes written to everyone
+    @Benchmark
+    public void encodeOnce(Blackhole blackhole) throws IOException {
+        EncodedMessage encoded = new EncodedMessage(message);
+        for (SinkStream recipient : recipients) {
+            recipient.write(encoded.frameFor(codec));
+        }
+        blackhole.consume(recipients[0].bytes);
+    }
+    
+    // What broadcastMessage does end to end: one encode, an offer to every
+    // client's outbound queue, then each writer draining its queue
+    @Benchmark
+    public void fanOutThroughQueues(Blackhole blackhole) throws IOException {
+        EncodedMessage encoded = new EncodedMessage(message);
+        for (OutboundQueue queue : queues) {
+            queue.offer(encoded, codec);
+        }
+        for (int i = 0; i < members; i++) {
+            OutboundQueue.Entry entry;
+            while ((entry = queues[i].poll()) != null) {
+                recipients[i].write(entry.frame());
+            }
+        }
+        blackhole.consume(recipients[0].bytes);
+    }
+    
+    // Encoding alone, which is what should stay flat as members grows
+    @Benchmark
+    public byte[] encodeOnly() throws IOException {
+        return new EncodedMessage(message).frameFor(codec);
+    }
+    
+    // Stands in for a socket: counts bytes instead of sending them
+    static final class SinkStream extends OutputStream {
+        long bytes;
+        
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+}
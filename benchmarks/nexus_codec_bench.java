@@ -0,0 +1,69 @@
+// Nexus - CodecBenchmark.java
+// Created by Michael Semera
+// JMH: ChatMessage encode, decode and round-trip cost for each wire protocol
+//
+// Run with JMH on the classpath:
+//   java -cp bin:jmh.jar org.openjdk.jmh.Main CodecBenchmark
+
+package com.michaelsemera.nexus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// ==================== CodecBenchmark Class ====================
+// A "line" is a typical chat message, below the compression threshold; a
+// "paste" is a 3.5 KB block of log output, which protocol 3 compresses.
+// Decoding goes through tryDecode, the path the reactor uses.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    
+    @Param({"1", "2", "3"})
+    int protocolVersion;
+    
+    @Param({"line", "paste"})
+    String size;
+    
+    private MessageCodec codec;
+    private ChatMessage message;
+    private byte[] frame;
+    
+    @Setup
+    public void setUp() throws IOException {
+        codec = FrameCodec.forVersion(protocolVersion);
+        
+        String content = "Has anyone tried the new build? Startup feels a lot faster.";
+        if (size.equals("paste")) {
+            StringBuilder paste = new StringBuilder();
+            for (int i = 0; i < 40; i++) {
+                paste.append("2024-02-01 12:00:").append(10 + i).append(" WARN  deploy: retrying upload of chunk ")
+                    .append(i).append(", connection reset\n");
+            }
+            content = paste.toString();
+        }
+        message = new ChatMessage(MessageType.CHAT, "alice", content, System.currentTimeMillis());
+        frame = codec.encodeFrame(message);
+    }
+    
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return codec.encodeFrame(message);
+    }
+    
+    @Benchmark
+    public ChatMessage decode() throws IOException {
+        return codec.tryDecode(ByteBuffer.wrap(frame));
+    }
+    
+    @Benchmark
+    public ChatMessage roundTrip() throws IOException {
+        return codec.tryDecode(ByteBuffer.wrap(codec.encodeFrame(message)));
+    }
+}
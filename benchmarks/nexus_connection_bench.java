@@ -0,0 +1,131 @@
+// Nexus - ConnectionBenchmark.java
+// Created by Michael Semera
+// Opens thousands of concurrent connections and counts how many get served
+//
+// Run (needs a high open-file limit, e.g. ulimit -n 65536):
+//   java -cp bin com.michaelsemera.nexus.ConnectionBenchmark thread_pool 10000
+//   java -cp bin com.michaelsemera.nexus.ConnectionBenchmark virtual_threads 10000
+
+package com.michaelsemera.nexus;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// ==================== ConnectionBenchmark Class ====================
+// A connection counts as served once its AUTH_REQUEST frame arrives, which
+// only happens after the server has given it a thread (or event loop slot).
+// Thread-pool mode refuses connections beyond its pool with an ERROR instead.
+class ConnectionBenchmark {
+    
+    private static final int PORT = 5099;
+    private static final long SERVE_DEADLINE_MILLIS = 15000;
+    
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "virtual_threads";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        
+        ChatServer server = new ChatServer(ServerConfig.fromArgs(new String[] {
+            "--mode=" + mode,
+            "--port=" + PORT,
+            "--max-connections=" + (connections + 1),
+            "--auth-iterations=1000",
+            "--auth-timeout-ms=" + (SERVE_DEADLINE_MILLIS * 2)
+        }));
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(1000);
+        
+        List<SocketChannel> channels = new ArrayList<>(connections);
+        Selector selector = Selector.open();
+        long startNanos = System.nanoTime();
+        
+        try {
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+                channel.write(ByteBuffer.wrap(FrameCodec.opening(FrameCodec.FRAMED_MAGIC)));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+                channels.add(channel);
+            }
+            long connectMillis = (System.nanoTime() - startNanos) / 1_000_000;
+            
+            int[] answered = awaitFirstFrames(selector, connections);
+            int served = answered[0];
+            long servedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+            
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            long heapMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+            
+            System.out.println("\n===== Connection benchmark: " + mode + " =====");
+            System.out.printf("connections opened : %d in %d ms%n", connections, connectMillis);
+            System.out.printf("connections served : %d in %d ms%n", served, servedMillis);
+            System.out.printf("connections refused: %d%n", answered[1]);
+            System.out.printf("platform threads   : %d%n", ManagementFactory.getThreadMXBean().getThreadCount());
+            System.out.printf("heap used          : %d MB%n", heapMb);
+            
+        } finally {
+            for (SocketChannel channel : channels) {
+                closeQuietly(channel);
+            }
+            selector.close();
+            server.shutdown();
+        }
+    }
+    
+    // Served and refused counts; each connection's first frame is read into its own buffer
+    private static int[] awaitFirstFrames(Selector selector, int expected) throws IOException {
+        long deadline = System.currentTimeMillis() + SERVE_DEADLINE_MILLIS;
+        int served = 0;
+        int refused = 0;
+        
+        while (served + refused < expected && System.currentTimeMillis() < deadline) {
+            selector.select(250);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                
+                if (key.attachment() == null) {
+                    key.attach(ByteBuffer.allocate(1024));
+                }
+                ByteBuffer frame = (ByteBuffer) key.attachment();
+                if (((SocketChannel) key.channel()).read(frame) < 0) {
+                    key.cancel();
+                    refused++;
+                    continue;
+                }
+                
+                frame.flip();
+                ChatMessage first = FrameCodec.SERIALIZED.tryDecode(frame);
+                frame.compact();
+                if (first != null) {
+                    key.cancel();
+                    if (first.getType() == MessageType.AUTH_REQUEST) {
+                        served++;
+                    } else {
+                        refused++;
+                    }
+                }
+            }
+        }
+        return new int[] {served, refused};
+    }
+    
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Benchmark teardown
+        }
+    }
+}
@@ -0,0 +1,115 @@
+// Nexus - ContentionBenchmark.java
+// Created by Michael Semera
+// JMH: broadcast and history throughput under concurrent senders, monitor vs lock-free
+//
+// Run with JMH on the classpath at increasing thread counts:
+//   java -cp bin:jmh.jar org.openjdk.jmh.Main ContentionBenchmark -t 1
+//   java -cp bin:jmh.jar org.openjdk.jmh.Main ContentionBenchmark -t 4
+//   java -cp bin:jmh.jar org.openjdk.jmh.Main ContentionBenchmark -t 16
+
+package com.michaelsemera.nexus;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.*;
+
+// ==================== ContentionBenchmark Class ====================
+// The "monitor" methods replicate the old ChatServer path, where every
+// broadcast and history append serialized on the server instance. The
+// "lockFree" methods mirror the current RecipientSet snapshot and deque.
+// Recipients only count deliveries, so the numbers isolate coordination.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentionBenchmark {
+    
+    private static final int HISTORY_LIMIT = 100;
+    
+    @Param({"10", "100", "1000"})
+    int members;
+    
+    private final Object monitor = new Object();
+    private Map<String, Recipient> connectedClients;
+    private List<String> monitorHistory;
+    
+    private RecipientSet<Recipient> recipients;
+    private ConcurrentLinkedDeque<String> lockFreeHistory;
+    private AtomicInteger historySize;
+    
+    @Setup
+    public void setUp() {
+        connectedClients = new ConcurrentHashMap<>();
+        monitorHistory = new CopyOnWriteArrayList<>();
+        recipients = new RecipientSet<>(new Recipient[0]);
+        lockFreeHistory = new ConcurrentLinkedDeque<>();
+        historySize = new AtomicInteger();
+        
+        for (int i = 0; i < members; i++) {
+            Recipient recipient = new Recipient("user" + i);
+            connectedClients.put(recipient.username, recipient);
+            recipients.add(recipient);
+        }
+    }
+    
+    @Benchmark
+    public void monitorBroadcast() {
+        synchronized (monitor) {
+            for (Map.Entry<String, Recipient> entry : connectedClients.entrySet()) {
+                if (!entry.getKey().equals("user0")) {
+                    entry.getValue().deliver();
+                }
+            }
+        }
+    }
+    
+    @Benchmark
+    public void lockFreeBroadcast() {
+        for (Recipient recipient : recipients.snapshot()) {
+            if (!recipient.username.equals("user0")) {
+                recipient.deliver();
+            }
+        }
+    }
+    
+    @Benchmark
+    public void monitorHistory() {
+        synchronized (monitor) {
+            monitorHistory.add("message");
+            if (monitorHistory.size() > HISTORY_LIMIT) {
+                monitorHistory.remove(0);
+            }
+        }
+    }
+    
+    @Benchmark
+    public void lockFreeHistory() {
+        lockFreeHistory.addLast("message");
+        if (historySize.incrementAndGet() > HISTORY_LIMIT && lockFreeHistory.pollFirst() != null) {
+            historySize.decrementAndGet();
+        }
+    }
+    
+    // Stands in for a client handler: counts deliveries instead of queueing frames
+    static final class Recipient {
+        final String username;
+        final LongAdder delivered = new LongAdder();
+        
+        Recipient(String username) {
+            this.username = username;
+        }
+        
+        void deliver() {
+            delivered.increment();
+        }
+    }
+}
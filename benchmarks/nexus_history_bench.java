@@ -0,0 +1,70 @@
+// Nexus - HistoryBenchmark.java
+// Created by Michael Semera
+// JMH: history appends and login replays on the lock-free ring
+//
+// Run with JMH on the classpath:
+//   java -cp bin:jmh.jar org.openjdk.jmh.Main HistoryBenchmark
+
+package com.michaelsemera.nexus;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// ==================== HistoryBenchmark Class ====================
+// append is addToHistory without a message log or search index; the
+// contended variant has four senders appending at once. replay is
+// sendMessageHistory for one client: snapshot the newest entries and
+// queue each one's shared frame.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark {
+    
+    @Param({"100", "1000"})
+    int capacity;
+    
+    private HistoryRing<EncodedMessage> history;
+    private EncodedMessage message;
+    private OutboundQueue queue;
+    
+    @Setup
+    public void setUp() throws IOException {
+        history = new HistoryRing<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            EncodedMessage encoded = new EncodedMessage(new ChatMessage(MessageType.CHAT, "alice",
+                "Message " + i + " from the backlog", System.currentTimeMillis()));
+            encoded.frameFor(FrameCodec.BINARY);
+            history.append(encoded);
+        }
+        message = new EncodedMessage(new ChatMessage(MessageType.CHAT, "bob", "One more", System.currentTimeMillis()));
+        queue = new OutboundQueue(new SlowConsumerPolicy(capacity, capacity, capacity + 1));
+    }
+    
+    @Benchmark
+    public long append() {
+        return history.append(message);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public long appendContended() {
+        return history.append(message);
+    }
+    
+    @Benchmark
+    public void replay(Blackhole blackhole) throws IOException {
+        for (EncodedMessage entry : history.snapshot(capacity)) {
+            queue.offer(entry, FrameCodec.BINARY);
+        }
+        OutboundQueue.Entry entry;
+        while ((entry = queue.poll()) != null) {
+            blackhole.consume(entry.frame());
+        }
+    }
+}
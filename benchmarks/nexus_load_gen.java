@@ -0,0 +1,435 @@
+// Nexus - LoadGenerator.java
+// Created by Michael Semera
+// Headless simulated users against a running server, with latency percentiles
+//
+// Start the server with limits that allow one address to log in many users, e.g.
+//   java -cp bin com.michaelsemera.nexus.ChatServer --mode=reactor --auth-attempt-burst=100000 --max-clients=2000
+// then run (needs a high open-file limit for large --users):
+//   java -cp bin com.michaelsemera.nexus.LoadGenerator --users=1000 --duration-s=30 --chat-per-s=100 --report=run.txt
+
+package com.michaelsemera.nexus;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ==================== LoadGenerator Class ====================
+// Opens --users connections, each registering (or, if the account exists,
+// logging in) as load<i>. Once everyone is connected, one sender thread
+// emits lobby chat, private messages and typing toggles at fixed total
+// rates, spread over random users, while one selector thread reads for
+// all of them.
+//
+// Chat and private messages carry the time they were scheduled to be sent,
+// so a delivery's latency runs from that moment to the moment it is read.
+// Measuring from the schedule rather than the actual send keeps a stalled
+// sender from hiding the stall (coordinated omission). Every recipient's
+// copy of a broadcast counts as one delivery.
+//
+// The report has one "key value" line per figure in a fixed order, so two
+// runs against different server builds can be compared with diff.
+class LoadGenerator {
+    
+    private static final String MARKER = "load@";
+    private static final long SEND_TICK_MILLIS = 5;
+    private static final long DRAIN_MILLIS = 2000;
+    private static final int READ_BUFFER = 64 * 1024;
+    
+    private final String host;
+    private final int port;
+    private final int users;
+    private final int durationSeconds;
+    private final double chatPerSecond;
+    private final double privatePerSecond;
+    private final double typingPerSecond;
+    private final int protocol;
+    private final int connectThreads;
+    private final int padding;
+    
+    private final List<User> connected = new ArrayList<>();
+    private final Queue<User> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final LatencyHistogram setupMicros = new LatencyHistogram();
+    private final LatencyHistogram chatMicros = new LatencyHistogram();
+    private final LatencyHistogram privateMicros = new LatencyHistogram();
+    private final AtomicLong setupFailures = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong framesRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private long chatSent;
+    private long privateSent;
+    private long typingSent;
+    private Selector selector;
+    private volatile boolean reading = true;
+    
+    LoadGenerator(Map<String, String> options) {
+        host = options.getOrDefault("host", "localhost");
+        port = Integer.parseInt(options.getOrDefault("port", "5000"));
+        users = Integer.parseInt(options.getOrDefault("users", "100"));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration-s", "30"));
+        chatPerSecond = Double.parseDouble(options.getOrDefault("chat-per-s", "50"));
+        privatePerSecond = Double.parseDouble(options.getOrDefault("private-per-s", "10"));
+        typingPerSecond = Double.parseDouble(options.getOrDefault("typing-per-s", "50"));
+        protocol = Integer.parseInt(options.getOrDefault("protocol", String.valueOf(FrameCodec.COMPRESSED_VERSION)));
+        connectThreads = Integer.parseInt(options.getOrDefault("connect-threads", "16"));
+        padding = Integer.parseInt(options.getOrDefault("message-bytes", "64"));
+        if (users < 2) {
+            throw new IllegalArgumentException("users must be at least 2, got " + users);
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                int split = arg.indexOf('=');
+                options.put(arg.substring(2, split), arg.substring(split + 1));
+            }
+        }
+        
+        String report = new LoadGenerator(options).run();
+        System.out.print(report);
+        if (options.containsKey("report")) {
+            Files.write(Paths.get(options.get("report")), report.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    String run() throws Exception {
+        selector = Selector.open();
+        Thread reader = new Thread(this::readLoop, "load-reader");
+        reader.setDaemon(true);
+        reader.start();
+        
+        long setupStart = System.nanoTime();
+        connectAll();
+        double setupSeconds = (System.nanoTime() - setupStart) / 1e9;
+        if (connected.size() < 2) {
+            throw new IOException("Only " + connected.size() + " of " + users + " users could connect");
+        }
+        
+        // Presence and join notices from the setup phase shouldn't count against the run
+        Thread.sleep(DRAIN_MILLIS);
+        long framesBefore = framesRead.get();
+        long bytesBefore = bytesRead.get();
+        
+        long runStart = System.nanoTime();
+        send(runStart, runStart + TimeUnit.SECONDS.toNanos(durationSeconds));
+        Thread.sleep(DRAIN_MILLIS);
+        double runSeconds = (System.nanoTime() - runStart) / 1e9;
+        
+        reading = false;
+        selector.wakeup();
+        reader.join(1000);
+        for (User user : connected) {
+            user.close();
+        }
+        selector.close();
+        
+        return report(setupSeconds, runSeconds, framesRead.get() - framesBefore, bytesRead.get() - bytesBefore);
+    }
+    
+    // ---------- setup ----------
+    
+    private void connectAll() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(connectThreads);
+        List<Future<User>> attempts = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            String name = "load" + i;
+            attempts.add(pool.submit(() -> connect(name)));
+        }
+        
+        for (Future<User> attempt : attempts) {
+            try {
+                User user = attempt.get();
+                if (user != null) {
+                    connected.add(user);
+                }
+            } catch (Exception e) {
+                setupFailures.incrementAndGet();
+            }
+        }
+        pool.shutdown();
+    }
+    
+    // Registers, or logs in when the account is left over from an earlier run
+    private User connect(String name) {
+        long start = System.nanoTime();
+        try {
+            User user = handshake(name, MessageType.REGISTER);
+            if (user == null) {
+                user = handshake(name, MessageType.LOGIN);
+            }
+            if (user == null) {
+                setupFailures.incrementAndGet();
+                return null;
+            }
+            setupMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            pendingRegistrations.add(user);
+            selector.wakeup();
+            return user;
+            
+        } catch (IOException e) {
+            setupFailures.incrementAndGet();
+            return null;
+        }
+    }
+    
+    // Null if the server refused the credentials
+    private User handshake(String name, MessageType type) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            // Unbuffered, so nothing past AUTH_SUCCESS is read before the channel goes non-blocking
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            OutputStream out = Channels.newOutputStream(channel);
+            out.write(FrameCodec.opening(FrameCodec.FRAMED_MAGIC));
+            
+            MessageCodec codec = FrameCodec.SERIALIZED;
+            int version = Math.min(protocol, FrameCodec.negotiableVersion(codec.readFrame(in)));
+            if (version != codec.version()) {
+                codec.writeFrame(out, new ChatMessage(MessageType.HELLO, name, String.valueOf(version), System.currentTimeMillis()));
+                ChatMessage reply = codec.readFrame(in);
+                if (reply.getType() == MessageType.HELLO) {
+                    codec = FrameCodec.forVersion(FrameCodec.acceptVersion(reply));
+                }
+            }
+            
+            codec.writeFrame(out, new ChatMessage(type, name, name + ":password", System.currentTimeMillis()));
+            ChatMessage result = codec.readFrame(in);
+            if (result.getType() != MessageType.AUTH_SUCCESS) {
+                channel.close();
+                return null;
+            }
+            
+            channel.configureBlocking(false);
+            return new User(name, channel, codec);
+            
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    // ---------- sending ----------
+    
+    // Open loop: the number of messages due is fixed by the clock, not by how fast sends go
+    private void send(long start, long end) throws InterruptedException {
+        Random random = new Random(42);
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            double elapsed = (now - start) / 1e9;
+            
+            while (chatSent < (long) (elapsed * chatPerSecond)) {
+                long scheduled = start + (long) (chatSent / chatPerSecond * 1e9);
+                User sender = pick(random);
+                sender.send(new ChatMessage(MessageType.CHAT, sender.name, payload(scheduled), System.currentTimeMillis()));
+                chatSent++;
+            }
+            while (privateSent < (long) (elapsed * privatePerSecond)) {
+                long scheduled = start + (long) (privateSent / privatePerSecond * 1e9);
+                User sender = pick(random);
+                User recipient = pick(random);
+                while (recipient == sender) {
+                    recipient = pick(random);
+                }
+                sender.send(new ChatMessage(MessageType.PRIVATE_MESSAGE, sender.name,
+                    recipient.name + ":" + payload(scheduled), System.currentTimeMillis()));
+                privateSent++;
+            }
+            while (typingSent < (long) (elapsed * typingPerSecond)) {
+                User typist = pick(random);
+                typist.typing = !typist.typing;
+                typist.send(new ChatMessage(MessageType.TYPING, typist.name,
+                    typist.typing ? "typing" : "stopped", System.currentTimeMillis()));
+                typingSent++;
+            }
+            Thread.sleep(SEND_TICK_MILLIS);
+        }
+    }
+    
+    private User pick(Random random) {
+        return connected.get(random.nextInt(connected.size()));
+    }
+    
+    private String payload(long scheduledNanos) {
+        StringBuilder text = new StringBuilder(MARKER).append(scheduledNanos).append(' ');
+        while (text.length() < padding) {
+            text.append("lorem ipsum ");
+        }
+        return text.toString();
+    }
+    
+    // ---------- receiving ----------
+    
+    private void readLoop() {
+        try {
+            while (reading) {
+                User user;
+                while ((user = pendingRegistrations.poll()) != null) {
+                    user.channel.register(selector, SelectionKey.OP_READ, user);
+                }
+                
+                selector.select(250);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    User reader = (User) key.attachment();
+                    if (!reader.read()) {
+                        key.cancel();
+                        disconnects.incrementAndGet();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Shutting down
+        }
+    }
+    
+    private void onMessage(ChatMessage message, long receivedNanos) {
+        String content = message.getContent();
+        if (content == null || !content.startsWith(MARKER)) {
+            return;
+        }
+        long scheduled = Long.parseLong(content.substring(MARKER.length(), content.indexOf(' ')));
+        long micros = TimeUnit.NANOSECONDS.toMicros(receivedNanos - scheduled);
+        
+        if (message.getType() == MessageType.CHAT) {
+            chatMicros.record(micros);
+        } else if (message.getType() == MessageType.PRIVATE_MESSAGE) {
+            privateMicros.record(micros);
+        }
+    }
+    
+    // ---------- report ----------
+    
+    private String report(double setupSeconds, double runSeconds, long frames, long bytes) {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        long deliveries = chatMicros.getCount() + privateMicros.getCount();
+        
+        out.println("# Nexus load report");
+        out.printf("target                   %s:%d%n", host, port);
+        out.printf("protocol                 %d%n", connected.get(0).codec.version());
+        out.printf("users                    %d%n", users);
+        out.printf("users_connected          %d%n", connected.size());
+        out.printf("users_failed             %d%n", setupFailures.get());
+        out.printf("duration_s               %d%n", durationSeconds);
+        out.printf("rate_chat_per_s          %.1f%n", chatPerSecond);
+        out.printf("rate_private_per_s       %.1f%n", privatePerSecond);
+        out.printf("rate_typing_per_s        %.1f%n", typingPerSecond);
+        out.printf("message_bytes            %d%n", padding);
+        out.println();
+        out.printf("setup_total_s            %.2f%n", setupSeconds);
+        printPercentiles(out, "setup", setupMicros);
+        out.println();
+        out.printf("sent_chat                %d%n", chatSent);
+        out.printf("sent_private             %d%n", privateSent);
+        out.printf("sent_typing              %d%n", typingSent);
+        out.printf("delivered_chat           %d%n", chatMicros.getCount());
+        out.printf("delivered_chat_expect    %d%n", chatSent * connected.size());
+        out.printf("delivered_private        %d%n", privateMicros.getCount());
+        out.printf("deliveries_per_s         %.0f%n", deliveries / runSeconds);
+        out.printf("frames_read_per_s        %.0f%n", frames / runSeconds);
+        out.printf("bytes_read_per_s         %.0f%n", bytes / runSeconds);
+        out.printf("disconnects              %d%n", disconnects.get());
+        out.println();
+        printPercentiles(out, "latency_chat", chatMicros);
+        printPercentiles(out, "latency_private", privateMicros);
+        out.flush();
+        return text.toString();
+    }
+    
+    private static void printPercentiles(PrintWriter out, String name, LatencyHistogram histogram) {
+        out.printf("%-24s %d%n", name + "_count", histogram.getCount());
+        out.printf("%-24s %.3f%n", name + "_p50_ms", histogram.valueAtPercentile(50) / 1000.0);
+        out.printf("%-24s %.3f%n", name + "_p99_ms", histogram.valueAtPercentile(99) / 1000.0);
+        out.printf("%-24s %.3f%n", name + "_p999_ms", histogram.valueAtPercentile(99.9) / 1000.0);
+        out.printf("%-24s %.3f%n", name + "_max_ms", histogram.getMax() / 1000.0);
+    }
+    
+    // ==================== User ====================
+    // One simulated client. send() runs on the sender thread, read() on the reader.
+    private final class User {
+        private final String name;
+        private final SocketChannel channel;
+        private final MessageCodec codec;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+        private boolean typing;
+        
+        User(String name, SocketChannel channel, MessageCodec codec) {
+            this.name = name;
+            this.channel = channel;
+            this.codec = codec;
+        }
+        
+        // The channel is non-blocking; a full send buffer means the server is behind, so wait it out
+        void send(ChatMessage message) {
+            try {
+                ByteBuffer frame = ByteBuffer.wrap(codec.encodeFrame(message));
+                while (frame.hasRemaining()) {
+                    if (channel.write(frame) == 0) {
+                        Thread.onSpinWait();
+                    }
+                }
+            } catch (IOException e) {
+                // Counted by the reader when the channel closes
+            }
+        }
+        
+        // False once the server has closed the connection
+        boolean read() {
+            try {
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    return false;
+                }
+                bytesRead.addAndGet(read);
+                long now = System.nanoTime();
+                
+                buffer.flip();
+                ChatMessage message;
+                while ((message = codec.tryDecode(buffer)) != null) {
+                    framesRead.incrementAndGet();
+                    onMessage(message, now);
+                }
+                buffer.compact();
+                return true;
+                
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Run is over
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+// Nexus - MetricsBenchmark.java
+// Created by Michael Semera
+// JMH: what ServerMetrics adds to a broadcast, and the cost of one scrape
+//
+// Run with JMH on the classpath:
+//   java -cp bin:jmh.jar org.openjdk.jmh.Main MetricsBenchmark
+
+package com.michaelsemera.nexus;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// ==================== MetricsBenchmark Class ====================
+// fanOut and instrumentedFanOut are the same broadcast to in-memory outbound
+// queues; the second counts its recipients and (sometimes) times the loop
+// the way broadcastMessage does. The difference between them is the metrics cost.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+    
+    @Param({"10", "1000"})
+    int members;
+    
+    private ChatMessage message;
+    private OutboundQueue[] queues;
+    private ServerMetrics metrics;
+    
+    @Setup
+    public void setUp() {
+        message = new ChatMessage(MessageType.CHAT, "alice",
+            "Has anyone tried the new build? Startup feels a lot faster.", System.currentTimeMillis());
+        queues = new OutboundQueue[members];
+        for (int i = 0; i < members; i++) {
+            queues[i] = new OutboundQueue(new SlowConsumerPolicy(64, 256, 4096));
+        }
+        metrics = new ServerMetrics(new FixedSource(), new WriteStats());
+    }
+    
+    @Benchmark
+    public void fanOut(Blackhole blackhole) throws IOException {
+        EncodedMessage encoded = new EncodedMessage(message);
+        for (OutboundQueue queue : queues) {
+            queue.offer(encoded, FrameCodec.BINARY);
+        }
+        drain(blackhole);
+    }
+    
+    @Benchmark
+    public void instrumentedFanOut(Blackhole blackhole) throws IOException {
+        EncodedMessage encoded = new EncodedMessage(message);
+        long start = metrics.fanOutStart();
+        int queued = 0;
+        for (OutboundQueue queue : queues) {
+            if (queue.offer(encoded, FrameCodec.BINARY) == OutboundQueue.Offer.QUEUED) {
+                queued++;
+            }
+        }
+        metrics.messagesQueued(encoded.getType(), queued);
+        metrics.fanOutEnd(start);
+        drain(blackhole);
+    }
+    
+    // Off the message path, on the metrics thread
+    @Benchmark
+    public String scrape() {
+        return metrics.toPrometheus();
+    }
+    
+    private void drain(Blackhole blackhole) throws IOException {
+        for (OutboundQueue queue : queues) {
+            OutboundQueue.Entry entry;
+            while ((entry = queue.poll()) != null) {
+                blackhole.consume(entry.frame());
+            }
+        }
+    }
+    
+    // Gauges for the scrape; their values don't matter here
+    private static final class FixedSource implements ServerMetrics.Source {
+        
+        @Override
+        public int connectedClients() {
+            return 1000;
+        }
+        
+        @Override
+        public int openConnections() {
+            return 1000;
+        }
+        
+        @Override
+        public int historySize() {
+            return 100;
+        }
+        
+        @Override
+        public int rooms() {
+            return 10;
+        }
+        
+        @Override
+        public boolean messageLogFailed() {
+            return false;
+        }
+        
+        @Override
+        public Map<String, Integer> outboundQueueDepths() {
+            return Collections.emptyMap();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+// Nexus - PresenceBenchmark.java
+// Created by Michael Semera
+// JMH: cost of one user joining and leaving a room as the roster grows
+//
+// Run with JMH on the classpath:
+//   java -cp bin:jmh.jar org.openjdk.jmh.Main PresenceBenchmark
+
+package com.michaelsemera.nexus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// ==================== PresenceBenchmark Class ====================
+// The publisher mirrors ChatServer's: the joiner gets the full roster
+// snapshot, everyone else one shared delta. Members only count the frames
+// they are sent, so the numbers cover roster bookkeeping and encoding.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PresenceBenchmark {
+    
+    @Param({"10", "100", "1000", "10000"})
+    int members;
+    
+    private PresenceTracker<Member> presence;
+    private RecipientSet<Member> recipients;
+    private Member newcomer;
+    
+    @Setup
+    public void setUp() {
+        recipients = new RecipientSet<>(new Member[0]);
+        presence = new PresenceTracker<>(null, new Publisher());
+        for (int i = 0; i < members; i++) {
+            presence.join(new Member(), "user" + i);
+        }
+        newcomer = new Member();
+    }
+    
+    // notifyUserJoined followed by notifyUserLeft for one extra user
+    @Benchmark
+    public long joinAndLeave() {
+        presence.join(newcomer, "newcomer");
+        presence.leave(newcomer, "newcomer");
+        return newcomer.bytes;
+    }
+    
+    static final class Member {
+        long bytes;
+        
+        void send(EncodedMessage message) {
+            try {
+                bytes += message.frameFor(FrameCodec.BINARY).length;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    
+    private final class Publisher implements PresenceTracker.Publisher<Member> {
+        
+        @Override
+        public boolean isConnected(Member member) {
+            return true;
+        }
+        
+        @Override
+        public void joined(Member member, PresenceTracker.Change change) {
+            recipients.add(member);
+            member.send(new EncodedMessage(change.snapshot()));
+            publish(member, change);
+        }
+        
+        @Override
+        public void left(Member member, PresenceTracker.Change change) {
+            recipients.remove(member);
+            publish(member, change);
+        }
+        
+        private void publish(Member subject, PresenceTracker.Change change) {
+            EncodedMessage delta = new EncodedMessage(change.delta());
+            for (Member member : recipients.snapshot()) {
+                if (member != subject) {
+                    member.send(delta);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+// Nexus - WriteBenchmark.java
+// Created by Michael Semera
+// Broadcast delivery rate and socket writes per frame, with and without write batching
+//
+// Run (needs a high open-file limit, e.g. ulimit -n 65536); extra arguments go to the server:
+//   java -cp bin com.michaelsemera.nexus.WriteBenchmark reactor 1000 1000
+//   java -cp bin com.michaelsemera.nexus.WriteBenchmark reactor 1000 1000 --write-buffer-bytes=0
+//   java -cp bin com.michaelsemera.nexus.WriteBenchmark thread_pool 1000 1000 --write-flush-delay-us=500
+
+package com.michaelsemera.nexus;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+// ==================== WriteBenchmark Class ====================
+// Logs in N receivers, then one extra connection sends M lobby messages as
+// fast as it can. The server fans each one out to every receiver, so the
+// run ends once N * M chat frames have arrived. Frames per write comes from
+// the server's own counters; with --write-buffer-bytes=0 every frame is a
+// separate write, which is how the server wrote before batching.
+class WriteBenchmark {
+    
+    private static final int PORT = 5098;
+    private static final long DELIVERY_DEADLINE_MILLIS = 120000;
+    private static final long QUIET_MILLIS = 500;
+    private static final int READ_BUFFER = 64 * 1024;
+    
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "reactor";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        
+        List<String> serverArgs = new ArrayList<>(Arrays.asList(
+            "--mode=" + mode,
+            "--port=" + PORT,
+            "--max-clients=" + (clients + 10),
+            "--max-connections=" + (clients + 10),
+            "--auth-iterations=1000",
+            "--auth-attempt-burst=" + (clients * 2),
+            "--history-replay=0",
+            // Receivers read flat out, but give bursts room before the slow-consumer cutoff
+            "--outbound-high-water=" + (messages + 1024)));
+        int defaultArgs = serverArgs.size();
+        serverArgs.addAll(Arrays.asList(args).subList(Math.min(3, args.length), args.length));
+        
+        ChatServer server = new ChatServer(ServerConfig.fromArgs(serverArgs.toArray(new String[0])));
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(3000);
+        
+        List<SocketChannel> channels = new ArrayList<>(clients);
+        Selector selector = Selector.open();
+        Socket sender = null;
+        
+        try {
+            for (int i = 0; i < clients; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+                MessageCodec codec = logIn(Channels.newInputStream(channel), Channels.newOutputStream(channel), "bench" + i);
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new Receiver(codec));
+                channels.add(channel);
+            }
+            
+            sender = new Socket("localhost", PORT);
+            MessageCodec senderCodec = logIn(sender.getInputStream(), sender.getOutputStream(), "sender");
+            drainInBackground(sender.getInputStream());
+            // Let the join notices from logging everyone in go out before counting
+            awaitQuiet(selector);
+            
+            long framesBefore = server.getWriteStats().getFrames();
+            long writesBefore = server.getWriteStats().getWrites();
+            long startNanos = System.nanoTime();
+            
+            OutputStream senderOut = sender.getOutputStream();
+            Thread sending = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        senderCodec.writeFrame(senderOut, new ChatMessage(MessageType.CHAT, "sender",
+                            "Broadcast " + i + ": has anyone tried the new build?", System.currentTimeMillis()));
+                    }
+                } catch (IOException e) {
+                    System.err.println("Sender failed: " + e.getMessage());
+                }
+            }, "benchmark-sender");
+            sending.start();
+            
+            long expected = (long) clients * messages;
+            long delivered = awaitDeliveries(selector, expected);
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            long frames = server.getWriteStats().getFrames() - framesBefore;
+            long writes = server.getWriteStats().getWrites() - writesBefore;
+            
+            System.out.println("\n===== Write benchmark: " + mode + " =====");
+            System.out.printf("server             : %s%n", serverArgs.subList(defaultArgs, serverArgs.size()));
+            System.out.printf("deliveries         : %d of %d in %.2f s%n", delivered, expected, seconds);
+            System.out.printf("messages/sec       : %.0f%n", delivered / seconds);
+            System.out.printf("frames sent        : %d%n", frames);
+            System.out.printf("socket writes      : %d%n", writes);
+            System.out.printf("frames per write   : %.2f%n", writes > 0 ? (double) frames / writes : 0.0);
+            
+        } finally {
+            if (sender != null) {
+                sender.close();
+            }
+            for (SocketChannel channel : channels) {
+                closeQuietly(channel);
+            }
+            selector.close();
+            server.shutdown();
+        }
+    }
+    
+    // Registers a fresh account over a blocking stream, upgrading to the binary protocol
+    private static MessageCodec logIn(InputStream rawIn, OutputStream out, String name) throws IOException {
+        DataInputStream in = new DataInputStream(rawIn);
+        out.write(FrameCodec.opening(FrameCodec.FRAMED_MAGIC));
+        MessageCodec codec = FrameCodec.SERIALIZED;
+        ChatMessage authRequest = codec.readFrame(in);
+        
+        int version = FrameCodec.negotiableVersion(authRequest);
+        if (version != codec.version()) {
+            codec.writeFrame(out, new ChatMessage(MessageType.HELLO, name, String.valueOf(version), System.currentTimeMillis()));
+            codec = FrameCodec.forVersion(FrameCodec.acceptVersion(codec.readFrame(in)));
+        }
+        
+        codec.writeFrame(out, new ChatMessage(MessageType.REGISTER, name, name + ":password", System.currentTimeMillis()));
+        ChatMessage reply = codec.readFrame(in);
+        if (reply.getType() != MessageType.AUTH_SUCCESS) {
+            throw new IOException(name + " could not log in: " + reply.getContent());
+        }
+        return codec;
+    }
+    
+    private static void drainInBackground(InputStream in) {
+        Thread drain = new Thread(() -> {
+            byte[] scratch = new byte[READ_BUFFER];
+            try {
+                while (in.read(scratch) >= 0) {
+                    // Discard
+                }
+            } catch (IOException e) {
+                // Benchmark teardown
+            }
+        }, "benchmark-drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+    
+    private static void awaitQuiet(Selector selector) throws IOException {
+        while (selector.select(QUIET_MILLIS) > 0) {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                ((Receiver) key.attachment()).read((SocketChannel) key.channel());
+            }
+        }
+    }
+    
+    private static long awaitDeliveries(Selector selector, long expected) throws IOException {
+        long deadline = System.currentTimeMillis() + DELIVERY_DEADLINE_MILLIS;
+        long delivered = 0;
+        
+        while (delivered < expected && System.currentTimeMillis() < deadline) {
+            selector.select(250);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                delivered += ((Receiver) key.attachment()).read((SocketChannel) key.channel());
+            }
+        }
+        return delivered;
+    }
+    
+    // Decodes one receiver's frames and counts the chat messages among them
+    private static final class Receiver {
+        private final MessageCodec codec;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+        
+        Receiver(MessageCodec codec) {
+            this.codec = codec;
+        }
+        
+        int read(SocketChannel channel) throws IOException {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Server closed a receiver");
+            }
+            buffer.flip();
+            int chats = 0;
+            ChatMessage message;
+            while ((message = codec.tryDecode(buffer)) != null) {
+                if (message.getType() == MessageType.CHAT) {
+                    chats++;
+                }
+            }
+            buffer.compact();
+            return chats;
+        }
+    }
+    
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Benchmark teardown
+        }
+    }
+}
@@ -0,0 +1,283 @@
+// Nexus - Authenticator.java and PasswordHash.java
+// Created by Michael Semera
+// Off-thread login stage with salted password hashes
+
+package com.michaelsemera.nexus;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// ==================== PasswordHash Class ====================
+// PBKDF2-HMAC-SHA256 with a random 16-byte salt per password
+final class PasswordHash {
+    
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    private final byte[] salt;
+    private final int iterations;
+    private final byte[] hash;
+    
+    PasswordHash(byte[] salt, int iterations, byte[] hash) {
+        this.salt = salt;
+        this.iterations = iterations;
+        this.hash = hash;
+    }
+    
+    static PasswordHash create(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return new PasswordHash(salt, iterations, derive(password, salt, iterations));
+    }
+    
+    // Constant-time comparison of the derived hashes. This says nothing about
+    // whether the account exists; Authenticator hides that by hashing anyway
+    boolean verify(String password) {
+        return MessageDigest.isEqual(hash, derive(password, salt, iterations));
+    }
+    
+    // Snapshot lookups decode a fresh instance each time, so identity can't tell
+    // whether a stored password changed; the salt, cost and hash can
+    boolean sameAs(PasswordHash other) {
+        return other == this
+            || other != null
+            && iterations == other.iterations
+            && MessageDigest.isEqual(salt, other.salt)
+            && MessageDigest.isEqual(hash, other.hash);
+    }
+    
+    byte[] getSalt() {
+        return salt;
+    }
+    
+    int getIterations() {
+        return iterations;
+    }
+    
+    byte[] getHash() {
+        return hash;
+    }
+    
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is always available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
+
+// ==================== Authenticator Class ====================
+// Logins and registrations run on a small bounded pool, away from the
+// threads that deliver chat. A deliberately slow hash protects stored
+// passwords; to keep reconnects cheap, a user's last verified password is
+// remembered as a keyed MAC for a short while, so a repeat login costs
+// microseconds instead of a full hash. Each client IP draws attempts from a
+// token bucket, which caps both password guessing and reconnect storms.
+final class Authenticator {
+    
+    enum Result {
+        SUCCESS,
+        INVALID,        // Wrong password or unknown user
+        EXISTS,         // Registration for a taken name
+        THROTTLED,      // Too many attempts from this address
+        BUSY            // Auth queue full
+    }
+    
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    
+    private final UserStore users;
+    private final Map<String, VerifiedLogin> verified = new ConcurrentHashMap<>();
+    private final Map<String, AttemptBucket> attempts = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor pool;
+    private final SecretKeySpec cacheKey;
+    private final PasswordHash unknownUser;
+    private final int iterations;
+    private final long cacheMillis;
+    private final int attemptBurst;
+    private final double attemptsPerMilli;
+    
+    Authenticator(ServerConfig config, UserStore users) {
+        this.users = users;
+        this.iterations = config.getAuthIterations();
+        this.cacheMillis = config.getAuthCacheSeconds() * 1000L;
+        this.attemptBurst = config.getAuthAttemptBurst();
+        this.attemptsPerMilli = config.getAuthAttemptsPerMinute() / 60000.0;
+        
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.cacheKey = new SecretKeySpec(key, MAC_ALGORITHM);
+        this.unknownUser = PasswordHash.create(Long.toHexString(new SecureRandom().nextLong()), iterations);
+        
+        AtomicInteger threadCount = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(
+            config.getAuthThreads(), config.getAuthThreads(), 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(config.getAuthQueue()),
+            runnable -> {
+                Thread thread = new Thread(runnable, "nexus-auth-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+    
+    // Hashes on the calling thread; for seeding accounts at startup
+    void addUser(String user, String password) {
+        users.add(user, PasswordHash.create(password, iterations));
+    }
+    
+    // A recently verified password completes at once, without queueing behind hashes
+    CompletableFuture<Result> login(String address, String user, String password) {
+        if (!tryAttempt(address)) {
+            return CompletableFuture.completedFuture(Result.THROTTLED);
+        }
+        PasswordHash stored = users.get(user);
+        if (stored == null) {
+            // Hashed like a wrong password, on the same pool, so response time
+            // doesn't tell an attacker which accounts exist
+            return submit(() -> {
+                unknownUser.verify(password);
+                return Result.INVALID;
+            });
+        }
+        if (isCached(user, password, stored)) {
+            return CompletableFuture.completedFuture(Result.SUCCESS);
+        }
+        return submit(() -> {
+            if (!stored.verify(password)) {
+                return Result.INVALID;
+            }
+            remember(user, password, stored);
+            return Result.SUCCESS;
+        });
+    }
+    
+    // Completes once the new account is durable; nothing blocks while it is written
+    CompletableFuture<Result> register(String address, String user, String password) {
+        if (!tryAttempt(address)) {
+            return CompletableFuture.completedFuture(Result.THROTTLED);
+        }
+        if (users.get(user) != null) {
+            return CompletableFuture.completedFuture(Result.EXISTS);
+        }
+        return submit(() -> PasswordHash.create(password, iterations))
+            .thenCompose(hash -> users.add(user, hash).thenApply(added -> {
+                if (!added) {
+                    // Of two concurrent registrations for a name, exactly one wins
+                    return Result.EXISTS;
+                }
+                remember(user, password, hash);
+                return Result.SUCCESS;
+            }));
+    }
+    
+    // Drops expired cache entries and idle buckets; called periodically
+    void sweep() {
+        long now = System.currentTimeMillis();
+        verified.values().removeIf(login -> login.expiresAt <= now);
+        attempts.values().removeIf(bucket -> bucket.isFull(now));
+    }
+    
+    void shutdown() {
+        pool.shutdownNow();
+    }
+    
+    private boolean tryAttempt(String address) {
+        return attempts.computeIfAbsent(address, key -> new AttemptBucket(attemptBurst)).tryAcquire();
+    }
+    
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, pool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Auth queue is full"));
+        }
+    }
+    
+    private boolean isCached(String user, String password, PasswordHash stored) {
+        VerifiedLogin login = verified.get(user);
+        return login != null
+            && login.hash.sameAs(stored)             // A changed password invalidates the entry
+            && login.expiresAt > System.currentTimeMillis()
+            && MessageDigest.isEqual(login.mac, mac(user, password));
+    }
+    
+    private void remember(String user, String password, PasswordHash stored) {
+        if (cacheMillis > 0) {
+            verified.put(user, new VerifiedLogin(stored, mac(user, password), System.currentTimeMillis() + cacheMillis));
+        }
+    }
+    
+    // The key never leaves this process, so cached MACs are useless to anyone who reads them
+    private byte[] mac(String user, String password) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(cacheKey);
+            mac.update(user.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is always available", e);
+        }
+    }
+    
+    private static final class VerifiedLogin {
+        private final PasswordHash hash;
+        private final byte[] mac;
+        private final long expiresAt;
+        
+        VerifiedLogin(PasswordHash hash, byte[] mac, long expiresAt) {
+            this.hash = hash;
+            this.mac = mac;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    // Holds up to attemptBurst tokens, refilled continuously
+    private final class AttemptBucket {
+        private double tokens;
+        private long lastRefill = System.currentTimeMillis();
+        
+        AttemptBucket(int tokens) {
+            this.tokens = tokens;
+        }
+        
+        synchronized boolean tryAcquire() {
+            refill(System.currentTimeMillis());
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+        
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= attemptBurst;
+        }
+        
+        private void refill(long now) {
+            tokens = Math.min(attemptBurst, tokens + (now - lastRefill) * attemptsPerMilli);
+            lastRefill = now;
+        }
+    }
+}
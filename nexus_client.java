@@ -4,10 +4,14 @@
 
 package com.michaelsemera.nexus ;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
 import javafx.geometry.Pos;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
@@ -16,24 +20,45 @@ import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
 import javafx.stage.Stage;
 
-import java.io.*;
-import java.net.Socket;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 public class ChatClient extends Application {
     
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 5000;
     
-    private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private NexusClient client;     // Connection, protocol and reconnects; this class only draws
     private String username;
-    private boolean isConnected;
     
-    private TextArea chatArea;
+    private static final int CHAT_WINDOW = 500;     // Lines held by the chat view; the rest stay in the transcript
+    private static final int CHAT_PAGE = 100;       // Lines paged in per scroll past either end
+    private static final int MAX_MESSAGES_PER_PULSE = 1000;
+    // No longer than the server would keep someone typing without an update
+    private static final long TYPING_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(TypingAggregator.DEFAULT_EXPIRY_MILLIS);
+    
+    private ListView<String> chatView;
+    private ChatTranscript transcript;  // Every line shown this session (FX thread only)
+    private long windowStart;           // Transcript line number of the chat view's first item
+    private ScrollBar chatScrollBar;
     private TextField messageField;
     private ListView<String> userListView;
+    private final Map<String, List<String>> rosters = new HashMap<>();    // Per room, lobby is "" (FX thread only)
+    private final Map<String, Long> rosterVersions = new HashMap<>();
+    private String currentRoom = "";    // Room that typed messages go to and userListView shows
+    private String lastSearch;          // Query behind the current "/more" cursor
+    private volatile String searchCursor;
+    private final InboundDispatcher inbound = new InboundDispatcher();
+    private long typingShownAt;         // System.nanoTime() of the last "typing" shown, 0 if none
     private Label statusLabel;
     private Button sendButton;
     
@@ -73,9 +98,8 @@ public class ChatClient extends Application {
         primaryStage.setScene(scene);
         primaryStage.setOnCloseRequest(e -> disconnect());
         primaryStage.show();
-        
-        // Start message receiver thread
-        new Thread(new MessageReceiver()).start();
+        watchChatScrolling();
+        inbound.start();
     }
     
     private VBox createHeader() {
@@ -108,19 +132,187 @@ public class ChatClient extends Application {
         Label chatLabel = new Label("Chat Messages");
         chatLabel.setFont(Font.font("Arial", FontWeight.BOLD, 16));
         
-        chatArea = new TextArea();
-        chatArea.setEditable(false);
-        chatArea.setWrapText(true);
-        chatArea.setStyle("-fx-control-inner-background: #ecf0f1; " +
+        // Virtualized: only the visible rows have cells, however many lines the window holds
+        chatView = new ListView<>();
+        chatView.setCellFactory(list -> new ListCell<String>() {
+            {
+                setWrapText(true);
+                setPrefWidth(0);    // Size to the list and wrap instead of scrolling sideways
+            }
+            
+            @Override
+            protected void updateItem(String line, boolean empty) {
+                super.updateItem(line, empty);
+                setText(empty ? null : line);
+            }
+        });
+        chatView.setStyle("-fx-control-inner-background: #ecf0f1; " +
                          "-fx-font-family: 'Courier New'; " +
                          "-fx-font-size: 13px;");
-        VBox.setVgrow(chatArea, Priority.ALWAYS);
+        VBox.setVgrow(chatView, Priority.ALWAYS);
         
-        panel.getChildren().addAll(chatLabel, chatArea);
+        try {
+            transcript = ChatTranscript.createTemporary();
+        } catch (IOException e) {
+            System.err.println("Chat transcript unavailable, keeping the last " + CHAT_WINDOW + " lines only: " + e.getMessage());
+        }
+        
+        panel.getChildren().addAll(chatLabel, chatView);
         
         return panel;
     }
     
+    // The scroll bar only exists once the list has been laid out
+    private void watchChatScrolling() {
+        for (Node node : chatView.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                chatScrollBar = (ScrollBar) node;
+            }
+        }
+        if (chatScrollBar == null) {
+            return;
+        }
+        
+        chatScrollBar.valueProperty().addListener((obs, oldValue, newValue) -> {
+            if (newValue.doubleValue() <= chatScrollBar.getMin()) {
+                pageOlder();
+            } else if (newValue.doubleValue() >= chatScrollBar.getMax()) {
+                pageNewer();
+            }
+        });
+    }
+    
+    // ---------- chat window ----------
+    // The chat view holds at most CHAT_WINDOW consecutive transcript lines.
+    // New lines are added while the window reaches the end of the transcript;
+    // scrolled back, they only go to the transcript until the user scrolls down
+    // to them or sends a message.
+    
+    private void appendLine(String line) {
+        appendLines(Collections.singletonList(line));
+    }
+    
+    // One list change however many lines a pulse brings
+    private void appendLines(List<String> lines) {
+        boolean atEnd = windowEnd() == transcriptSize();
+        if (transcript != null) {
+            try {
+                for (String line : lines) {
+                    transcript.append(line);
+                }
+            } catch (IOException e) {
+                System.err.println("Chat transcript write failed: " + e.getMessage());
+                closeTranscript();
+            }
+        }
+        
+        // Scrolled up in a full window: trimming its top would pull the text away from the reader
+        boolean following = chatScrollBar == null || !chatScrollBar.isVisible() || chatScrollBar.getValue() >= chatScrollBar.getMax();
+        ObservableList<String> items = chatView.getItems();
+        if (!atEnd || (!following && items.size() >= CHAT_WINDOW)) {
+            return;
+        }
+        
+        List<String> added = lines.size() > CHAT_WINDOW ? lines.subList(lines.size() - CHAT_WINDOW, lines.size()) : lines;
+        windowStart += lines.size() - added.size();
+        items.addAll(added);
+        int excess = items.size() - CHAT_WINDOW;
+        if (excess > 0) {
+            items.remove(0, excess);
+            windowStart += excess;
+        }
+        if (following) {
+            chatView.scrollTo(items.size() - 1);
+        }
+    }
+    
+    private void pageOlder() {
+        if (transcript == null || windowStart == 0) {
+            return;
+        }
+        long from = Math.max(0, windowStart - CHAT_PAGE);
+        List<String> older = readTranscript(from, (int) (windowStart - from));
+        if (older.isEmpty()) {
+            return;
+        }
+        
+        ObservableList<String> items = chatView.getItems();
+        items.addAll(0, older);
+        windowStart = from;
+        int excess = items.size() - CHAT_WINDOW;
+        if (excess > 0) {
+            items.remove(items.size() - excess, items.size());
+        }
+        chatView.scrollTo(older.size());    // Keep the line that was on top in view
+    }
+    
+    private void pageNewer() {
+        long end = windowEnd();
+        if (transcript == null || end == transcriptSize()) {
+            return;
+        }
+        List<String> newer = readTranscript(end, CHAT_PAGE);
+        if (newer.isEmpty()) {
+            return;
+        }
+        
+        ObservableList<String> items = chatView.getItems();
+        int lastShown = items.size() - 1;
+        items.addAll(newer);
+        int excess = items.size() - CHAT_WINDOW;
+        if (excess > 0) {
+            items.remove(0, excess);
+            windowStart += excess;
+            lastShown -= excess;
+        }
+        chatView.scrollTo(Math.max(0, lastShown));
+    }
+    
+    // Back to the newest lines, e.g. after sending while scrolled back
+    private void showLatest() {
+        if (transcript == null || windowEnd() == transcriptSize()) {
+            return;
+        }
+        long from = Math.max(0, transcriptSize() - CHAT_WINDOW);
+        List<String> latest = readTranscript(from, CHAT_WINDOW);
+        if (latest.isEmpty()) {
+            return;
+        }
+        windowStart = from;
+        chatView.getItems().setAll(latest);
+        chatView.scrollTo(latest.size() - 1);
+    }
+    
+    private long windowEnd() {
+        return windowStart + chatView.getItems().size();
+    }
+    
+    // Without a transcript the window is all there is
+    private long transcriptSize() {
+        return transcript != null ? transcript.size() : windowEnd();
+    }
+    
+    private List<String> readTranscript(long from, int count) {
+        try {
+            return transcript.read(from, count);
+        } catch (IOException e) {
+            System.err.println("Chat transcript read failed: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
+    private void closeTranscript() {
+        if (transcript == null) {
+            return;
+        }
+        try {
+            transcript.close();
+        } catch (IOException e) {
+            // Temporary file; nothing left to save
+        }
+        transcript = null;
+    }
+    
     private VBox createUserListPanel() {
         VBox panel = new VBox(10);
         panel.setPadding(new Insets(10));
@@ -231,48 +423,39 @@ public class ChatClient extends Application {
         return false;
     }
     
+    // Messages can arrive as soon as the login completes. They wait in the
+    // inbound queue until start() has built the UI and started the dispatcher.
     private boolean connectToServer(String user, String pass, boolean isLogin) {
+        NexusClient attempt = new NexusClient(SERVER_ADDRESS, SERVER_PORT);
+        attempt.addListener(new ClientListener());
+        
         try {
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
-            in = new ObjectInputStream(socket.getInputStream());
-            
-            // Wait for authentication request
-            ChatMessage authRequest = (ChatMessage) in.readObject();
+            String welcome = (isLogin ? attempt.login(user, pass) : attempt.register(user, pass)).join();
+            this.client = attempt;
+            this.username = user;
+            showAlert("Success", welcome);
+            return true;
             
-            if (authRequest.getType() == MessageType.AUTH_REQUEST) {
-                // Send credentials
-                ChatMessage credentials = new ChatMessage(
-                    isLogin ? MessageType.LOGIN : MessageType.REGISTER,
-                    user,
-                    user + ":" + pass,
-                    ""
-                );
-                out.writeObject(credentials);
-                out.flush();
-                
-                // Wait for authentication result
-                ChatMessage result = (ChatMessage) in.readObject();
-                
-                if (result.getType() == MessageType.AUTH_SUCCESS) {
-                    this.username = user;
-                    this.isConnected = true;
-                    showAlert("Success", result.getContent());
-                    return true;
-                } else {
-                    showAlert("Authentication Failed", result.getContent());
-                    socket.close();
-                    return showLoginDialog();
-                }
+        } catch (CompletionException e) {
+            attempt.close();
+            if (e.getCause() instanceof NexusClient.AuthenticationException) {
+                showAlert("Authentication Failed", e.getCause().getMessage());
+                return showLoginDialog();
             }
-            
-        } catch (IOException | ClassNotFoundException e) {
-            showAlert("Connection Error", "Could not connect to server: " + e.getMessage());
+            showAlert("Connection Error", "Could not connect to server: " + e.getCause().getMessage());
             return false;
         }
-        
-        return false;
+    }
+    
+    // Sends never block the FX thread; a failure is reported in the chat once
+    // the writer hits it, since a dropped connection can fail a whole batch
+    // and one dialog per message would bury the window
+    private void reportFailure(CompletableFuture<Void> sent, String what) {
+        sent.whenComplete((ignored, error) -> {
+            if (error != null) {
+                Platform.runLater(() -> appendLine("⚠️ " + what + ": " + error.getMessage()));
+            }
+        });
     }
     
     private void sendMessage() {
@@ -282,22 +465,74 @@ public class ChatClient extends Application {
             return;
         }
         
-        try {
-            ChatMessage chatMsg = new ChatMessage(
-                MessageType.CHAT,
-                username,
-                message,
-                ""
-            );
-            
-            out.writeObject(chatMsg);
-            out.flush();
-            
-            messageField.clear();
-            
-        } catch (IOException e) {
-            showAlert("Error", "Failed to send message: " + e.getMessage());
+        if (message.startsWith("/search ") || message.equals("/more")) {
+            sendSearch(message);
+            return;
+        }
+        if (message.startsWith("/join ") || message.equals("/leave")) {
+            switchRoom(message);
+            return;
         }
+        
+        reportFailure(client.sendChat(currentRoom.isEmpty() ? null : currentRoom, message), "Failed to send message");
+        messageField.clear();
+        showLatest();
+    }
+    
+    // "/join dev" joins #dev and sends typed messages there, "/leave" leaves it for the lobby
+    private void switchRoom(String command) {
+        if (client.getProtocolVersion() < FrameCodec.BINARY_VERSION) {
+            showAlert("Rooms", "This server does not support rooms");
+            return;
+        }
+        
+        if (command.equals("/leave")) {
+            if (currentRoom.isEmpty()) {
+                return;
+            }
+            reportFailure(client.leaveRoom(currentRoom), "Failed to switch rooms");
+            rosters.remove(currentRoom);
+            rosterVersions.remove(currentRoom);
+            appendLine("🚪 Left #" + currentRoom);
+            currentRoom = "";
+        } else {
+            String room = Room.normalizeName(command.substring("/join ".length()));
+            if (room == null) {
+                showAlert("Rooms", "Room names are 1-32 letters, digits, '-' or '_'");
+                return;
+            }
+            reportFailure(client.joinRoom(room), "Failed to switch rooms");
+            appendLine("🚪 Now chatting in #" + room + " (/leave to return to the lobby)");
+            currentRoom = room;
+        }
+        
+        userListView.getItems().setAll(rosters.getOrDefault(currentRoom, new ArrayList<>()));
+        messageField.clear();
+    }
+    
+    // "/search words from:user after:2024-01-31" starts a search, "/more" fetches the next page
+    private void sendSearch(String command) {
+        if (client.getProtocolVersion() < FrameCodec.BINARY_VERSION) {
+            showAlert("Search", "This server does not support search");
+            return;
+        }
+        
+        String request;
+        if (command.equals("/more")) {
+            String cursor = searchCursor;
+            if (lastSearch == null || cursor == null) {
+                showAlert("Search", "No more results");
+                return;
+            }
+            request = lastSearch + SearchIndex.CURSOR_PREFIX + cursor;
+        } else {
+            lastSearch = command.substring("/search ".length()).trim();
+            request = lastSearch;
+        }
+        searchCursor = null;
+        
+        reportFailure(client.search(request), "Failed to search");
+        messageField.clear();
     }
     
     private void sendPrivateMessage(String recipient) {
@@ -307,39 +542,12 @@ public class ChatClient extends Application {
         dialog.setContentText("Message:");
         
         Optional<String> result = dialog.showAndWait();
-        result.ifPresent(message -> {
-            try {
-                ChatMessage privateMsg = new ChatMessage(
-                    MessageType.PRIVATE_MESSAGE,
-                    username,
-                    recipient + ":" + message,
-                    ""
-                );
-                
-                out.writeObject(privateMsg);
-                out.flush();
-                
-            } catch (IOException e) {
-                showAlert("Error", "Failed to send private message");
-            }
-        });
+        result.ifPresent(message -> reportFailure(client.sendPrivate(recipient, message), "Failed to send private message"));
     }
     
+    // Typing status errors are ignored
     private void sendTypingStatus(boolean isTyping) {
-        try {
-            ChatMessage typingMsg = new ChatMessage(
-                MessageType.TYPING,
-                username,
-                isTyping ? "typing" : "stopped",
-                ""
-            );
-            
-            out.writeObject(typingMsg);
-            out.flush();
-            
-        } catch (IOException e) {
-            // Ignore typing status errors
-        }
+        client.sendTyping(currentRoom.isEmpty() ? null : currentRoom, isTyping);
     }
     
     private void showEmojiPicker() {
@@ -357,88 +565,147 @@ public class ChatClient extends Application {
         });
     }
     
-    private void displayMessage(ChatMessage message) {
-        Platform.runLater(() -> {
-            String displayText = "";
-            
-            switch (message.getType()) {
-                case CHAT:
-                    displayText = String.format("[%s] %s: %s\n", 
-                        message.getTimestamp(), message.getSender(), message.getContent());
-                    break;
-                    
-                case PRIVATE_MESSAGE:
-                    displayText = String.format("[%s] 📨 %s: %s\n", 
+    // FX thread. Updates the status or user list, or returns the line to show in the chat
+    private String applyMessage(ChatMessage message) {
+        String displayText = "";
+        
+        switch (message.getType()) {
+            case CHAT:
+                displayText = String.format("[%s] %s: %s", 
+                    message.getTimestamp(), message.getSender(), message.getContent());
+                break;
+                
+            case ROOM_CHAT:
+                displayText = String.format("[%s] #%s %s: %s", 
+                    message.getTimestamp(), message.getRoom(), message.getSender(), message.getContent());
+                break;
+                
+            case PRIVATE_MESSAGE:
+                displayText = String.format("[%s] 📨 %s: %s", 
+                    message.getTimestamp(), message.getSender(), message.getContent());
+                break;
+                
+            case SEARCH_RESULT:
+                if (message.getSender().equals("SERVER")) {
+                    String summary = message.getContent();
+                    int cursorAt = summary.indexOf(SearchIndex.CURSOR_PREFIX);
+                    searchCursor = cursorAt >= 0 ? summary.substring(cursorAt + SearchIndex.CURSOR_PREFIX.length()) : null;
+                    displayText = String.format("🔍 %s%s", cursorAt >= 0 ? summary.substring(0, cursorAt) : summary,
+                        cursorAt >= 0 ? " - type /more for the next page" : "");
+                } else {
+                    displayText = String.format("🔍 [%s] %s: %s", 
                         message.getTimestamp(), message.getSender(), message.getContent());
-                    break;
-                    
-                case USER_JOINED:
-                    displayText = String.format("✅ %s\n", message.getContent());
-                    break;
-                    
-                case USER_LEFT:
-                    displayText = String.format("❌ %s\n", message.getContent());
-                    break;
-                    
-                case TYPING:
-                    if (message.getContent().equals("typing")) {
-                        statusLabel.setText(message.getSender() + " is typing...");
-                        new Thread(() -> {
-                            try {
-                                Thread.sleep(3000);
-                                Platform.runLater(() -> 
-                                    statusLabel.setText("Connected as: " + username));
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                            }
-                        }).start();
-                    }
-                    return;
-                    
-                case USER_LIST:
-                    updateUserList(message.getContent());
-                    return;
-                    
-                case ERROR:
-                    displayText = String.format("⚠️ ERROR: %s\n", message.getContent());
-                    break;
-            }
-            
-            chatArea.appendText(displayText);
-        });
+                }
+                break;
+                
+            case USER_JOINED:
+                displayText = String.format("✅ %s", message.getContent());
+                break;
+                
+            case USER_LEFT:
+                displayText = String.format("❌ %s", message.getContent());
+                break;
+                
+            case TYPING:
+                // The server sends everyone typing in a room at once, and "stopped" when nobody is
+                if (!currentRoom.equals(message.getRoom() != null ? message.getRoom() : "")) {
+                    return null;
+                }
+                if (message.getContent().equals("typing")) {
+                    String[] typists = message.getSender().split(",");
+                    statusLabel.setText(String.join(", ", typists) + (typists.length > 1 ? " are typing..." : " is typing..."));
+                    typingShownAt = System.nanoTime();
+                } else {
+                    clearTyping();
+                }
+                return null;
+                
+            case PRESENCE:
+                updateUserList(message.getRoom(), message.getContent());
+                return null;
+                
+            case USER_LIST:
+                // Servers without PRESENCE send the whole roster every time
+                replaceUserList(message.getContent().split(","));
+                return null;
+                
+            case ERROR:
+                displayText = String.format("⚠️ ERROR: %s", message.getContent());
+                break;
+                
+            case HISTORY_GAP:
+                // Reconnected, but the server no longer had everything that was missed
+                displayText = String.format("⚠️ %s missed message(s)%s could not be recovered",
+                    message.getContent(), message.getRoom() != null ? " in #" + message.getRoom() : "");
+                break;
+        }
+        
+        return displayText.isEmpty() ? null : displayText;
     }
     
-    private void updateUserList(String userListStr) {
-        Platform.runLater(() -> {
-            userListView.getItems().clear();
-            String[] users = userListStr.split(",");
-            for (String user : users) {
-                if (!user.isEmpty()) {
-                    userListView.getItems().add(user);
+    // Applies a room's roster snapshot ("=version\nusers") or delta ("+version\nuser" / "-version\nuser")
+    private void updateUserList(String room, String presence) {
+        String key = room != null ? room : "";
+        int split = presence.indexOf('\n');
+        char op = presence.charAt(0);
+        long version = Long.parseLong(presence.substring(1, split));
+        String names = presence.substring(split + 1);
+        
+        if (op == '=') {
+            setRoster(key, names.split(","));
+            rosterVersions.put(key, version);
+            return;
+        }
+        
+        // Deltas arrive in order on one connection; anything older than the snapshot is stale.
+        // A roster from USER_LIST has no version, so every delta applies.
+        List<String> roster = rosters.get(key);
+        if (roster == null || version <= rosterVersions.getOrDefault(key, -1L)) {
+            return;
+        }
+        rosterVersions.put(key, version);
+        
+        boolean shown = key.equals(currentRoom);
+        if (op == '+') {
+            if (!roster.contains(names)) {
+                roster.add(names);
+                if (shown) {
+                    userListView.getItems().add(names);
                 }
             }
-        });
+        } else if (roster.remove(names) && shown) {
+            userListView.getItems().remove(names);
+        }
     }
     
-    private void disconnect() {
-        try {
-            if (isConnected && out != null) {
-                ChatMessage disconnectMsg = new ChatMessage(
-                    MessageType.DISCONNECT,
-                    username,
-                    "disconnect",
-                    ""
-                );
-                out.writeObject(disconnectMsg);
-                out.flush();
+    private void replaceUserList(String[] users) {
+        setRoster("", users);
+    }
+    
+    private void setRoster(String room, String[] users) {
+        List<String> online = new ArrayList<>();
+        for (String user : users) {
+            if (!user.isEmpty()) {
+                online.add(user);
             }
-            
-            if (out != null) out.close();
-            if (in != null) in.close();
-            if (socket != null && !socket.isClosed()) socket.close();
-            
-        } catch (IOException e) {
-            System.err.println("Error disconnecting: " + e.getMessage());
+        }
+        rosters.put(room, online);
+        rosterVersions.remove(room);            // A snapshot puts its own back
+        if (room.equals(currentRoom)) {
+            userListView.getItems().setAll(online);
+        }
+    }
+    
+    private void disconnect() {
+        if (client == null) {
+            return;
+        }
+        client.close();
+        inbound.stop();
+        closeTranscript();
+        
+        if (client.getCompressionStats() != null) {
+            System.out.println("Compression: " + client.getCompressionStats());
         }
     }
     
@@ -452,22 +719,70 @@ public class ChatClient extends Application {
         });
     }
     
-    private class MessageReceiver implements Runnable {
+    private void clearTyping() {
+        typingShownAt = 0;
+        statusLabel.setText("Connected as: " + username);
+    }
+    
+    // Inbound messages are queued by the reader thread and applied on the FX
+    // thread once per pulse (about 60 times a second), however many arrived,
+    // instead of one runLater each. A burst becomes one chat list change and
+    // one layout. Each pulse applies at most MAX_MESSAGES_PER_PULSE so a flood
+    // spreads over several frames instead of freezing one. The pulse is also
+    // the only timer the typing indicator needs.
+    private class InboundDispatcher extends AnimationTimer {
+        
+        private final ConcurrentLinkedQueue<ChatMessage> queue = new ConcurrentLinkedQueue<>();
+        private final List<String> lines = new ArrayList<>();     // FX thread only
+        
+        // Reader thread
+        void add(ChatMessage message) {
+            queue.add(message);
+        }
+        
         @Override
-        public void run() {
-            try {
-                while (isConnected && !socket.isClosed()) {
-                    ChatMessage message = (ChatMessage) in.readObject();
-                    displayMessage(message);
-                }
-            } catch (IOException | ClassNotFoundException e) {
-                if (isConnected) {
-                    Platform.runLater(() -> {
-                        showAlert("Connection Lost", "Disconnected from server");
-                        chatArea.appendText("\n⚠️ Connection lost. Please restart the application.\n");
-                    });
+        public void handle(long now) {
+            ChatMessage message;
+            for (int i = 0; i < MAX_MESSAGES_PER_PULSE && (message = queue.poll()) != null; i++) {
+                String line = applyMessage(message);
+                if (line != null) {
+                    lines.add(line);
                 }
             }
+            if (!lines.isEmpty()) {
+                appendLines(lines);
+                lines.clear();
+            }
+            
+            // Normally the server says "stopped"; this covers a lost connection or an older server
+            if (typingShownAt != 0 && now - typingShownAt > TYPING_TIMEOUT_NANOS) {
+                clearTyping();
+            }
+        }
+    }
+    
+    // Runs on the client's reader thread; everything visible goes through the dispatcher or runLater
+    private class ClientListener implements NexusClient.Listener {
+        
+        private volatile boolean dropped;
+        
+        @Override
+        public void onMessage(ChatMessage message) {
+            inbound.add(message);
+        }
+        
+        @Override
+        public void onStateChanged(NexusClient.State state) {
+            if (state == NexusClient.State.RECONNECTING) {
+                dropped = true;
+                Platform.runLater(() -> {
+                    appendLine("⚠️ Connection lost, reconnecting...");
+                    clearTyping();      // No "stopped" will come from the old connection
+                });
+            } else if (state == NexusClient.State.CONNECTED && dropped) {
+                dropped = false;
+                Platform.runLater(() -> appendLine("✅ Reconnected"));
+            }
         }
     }
     
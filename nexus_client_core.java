@@ -0,0 +1,664 @@
+// Nexus - NexusClient.java
+// Created by Michael Semera
+// Headless chat client: async login and sends, inbound listeners, automatic reconnect
+
+package com.michaelsemera.nexus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// ==================== NexusClient Class ====================
+// The protocol side of ChatClient, without any UI, for the desktop client,
+// bots and test tools alike. login() and register() connect, negotiate the
+// newest wire format the server offers, authenticate and follow cluster
+// redirects on the client's own thread. Sends are queued and written in
+// order by a single writer, so callers can pipeline as many as they like;
+// each returns a future that completes once its frame is on the socket.
+// Nothing a caller does ever waits on the network: the queue is bounded
+// and a send that doesn't fit fails at once, a typing toggle still queued
+// is overwritten by the next one, and whatever has queued up while the
+// writer was busy goes out in one buffered write.
+//
+// Inbound messages go to listeners on the reader thread, in arrival order;
+// a UI must hand them to its own thread. If the connection drops after a
+// successful login, the client logs in again after a growing delay, rejoins
+// its rooms and then sends whatever was queued in the meantime. Servers
+// that number their history are told the last seq seen in the lobby and in
+// each room, and send only what was missed instead of the whole replay;
+// a HISTORY_GAP says how many missed messages the server no longer had.
+// Two lobby messages sent at the same moment can arrive in either order,
+// so the odd message sent just as the connection dropped can still be lost.
+final class NexusClient implements Closeable {
+    
+    enum State {
+        DISCONNECTED,   // Not logged in yet
+        CONNECTED,
+        RECONNECTING,   // Connection lost; sends wait for the next login
+        CLOSED          // Closed by the caller, or lost with reconnect off
+    }
+    
+    // onMessage runs on the reader thread; onStateChanged on whichever thread changed the state
+    interface Listener {
+        void onMessage(ChatMessage message);
+        
+        default void onStateChanged(State state) {
+        }
+    }
+    
+    // The server refused the login; the message is the server's reason
+    static final class AuthenticationException extends IOException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        AuthenticationException(String reason) {
+            super(reason);
+        }
+    }
+    
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_REDIRECTS = 3;
+    private static final long MIN_RECONNECT_MILLIS = 500;
+    private static final long MAX_RECONNECT_MILLIS = 30000;
+    private static final long CLOSE_GRACE_MILLIS = 1000;
+    private static final int MAX_QUEUED = 1024;
+    private static final int MAX_BATCH = 64;
+    private static final int WRITE_BUFFER_BYTES = 8 * 1024;
+    
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<Outgoing> outbound = new LinkedBlockingQueue<>(MAX_QUEUED);
+    private final Map<String, Outgoing> queuedTyping = new ConcurrentHashMap<>();  // By room, lobby is ""
+    private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> lastSeqs = new ConcurrentHashMap<>();   // Highest seq received, by room, lobby is ""
+    private final ScheduledExecutorService connector;
+    private final Thread writer;
+    private String host;                    // Connector thread only; a redirect moves it
+    private int port;
+    private volatile boolean reconnect = true;
+    private volatile int maxProtocolVersion = FrameCodec.COMPRESSED_VERSION;
+    private volatile String username;
+    private volatile String password;       // Kept for logging in again after a drop
+    private volatile int protocolVersion = FrameCodec.SERIALIZED_VERSION;
+    private volatile CompressionStats compression;
+    private volatile String historyId;      // Names the history lastSeqs count through; null if the server has none
+    private volatile boolean closing;
+    private int reconnectAttempts;          // Connector thread only
+    private Session session;                // Guarded by this
+    private State state = State.DISCONNECTED;   // Guarded by this
+    
+    NexusClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.connector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "nexus-client-connect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer = new Thread(this::writeLoop, "nexus-client-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    // ---------- settings, before logging in ----------
+    
+    void setReconnect(boolean reconnect) {
+        this.reconnect = reconnect;
+    }
+    
+    // Caps the negotiated wire format, e.g. to test older protocols
+    void setMaxProtocolVersion(int version) {
+        this.maxProtocolVersion = version;
+    }
+    
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+    
+    // ---------- login ----------
+    
+    // Completes with the server's welcome text, or fails with an
+    // AuthenticationException (refused) or IOException (unreachable).
+    // A failed attempt leaves the client ready to try again.
+    CompletableFuture<String> login(String user, String password) {
+        return authenticate(MessageType.LOGIN, user, password);
+    }
+    
+    CompletableFuture<String> register(String user, String password) {
+        return authenticate(MessageType.REGISTER, user, password);
+    }
+    
+    private CompletableFuture<String> authenticate(MessageType type, String user, String password) {
+        if (getState() != State.DISCONNECTED) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Client is already " + getState()));
+        }
+        
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            connector.execute(() -> {
+                try {
+                    result.complete(connect(type, user, password));
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new IOException("Client is closed"));
+        }
+        return result;
+    }
+    
+    // Connector thread. Opens a session, follows redirects, rejoins rooms and
+    // only then hands the session to the writer and a new reader.
+    private String connect(MessageType type, String user, String password) throws IOException {
+        Session opened = open(type, user, password);
+        try {
+            for (String room : joinedRooms) {
+                ChatMessage join = new ChatMessage(MessageType.JOIN_ROOM, user, room, System.currentTimeMillis());
+                join.setSeq(lastSeqs.getOrDefault(room, 0L));
+                opened.write(join);
+            }
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        
+        synchronized (this) {
+            if (closing || state == State.CLOSED) {
+                opened.close();
+                throw new IOException("Client is closed");
+            }
+            this.username = user;
+            this.password = password;
+            this.protocolVersion = opened.codec.version();
+            this.compression = opened.compression;
+            session = opened;
+            state = State.CONNECTED;
+            notifyAll();
+        }
+        reconnectAttempts = 0;
+        
+        Thread reader = new Thread(() -> readLoop(opened), "nexus-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+        fireStateChanged(State.CONNECTED);
+        return opened.welcome;
+    }
+    
+    private Session open(MessageType type, String user, String password) throws IOException {
+        for (int redirects = 0; ; redirects++) {
+            Session attempt = new Session(host, port);
+            ChatMessage result;
+            try {
+                result = attempt.authenticate(type, user, password);
+            } catch (IOException e) {
+                attempt.close();
+                throw e;
+            }
+            if (result.getType() == MessageType.AUTH_SUCCESS) {
+                attempt.welcome = result.getContent();
+                forgetStaleSeqs(attempt.history, user);
+                historyId = attempt.history;
+                return attempt;
+            }
+            attempt.close();
+            
+            // Clustered server: this user lives on another node, which is where reconnects go too
+            String reason = result.getContent();
+            if (!reason.startsWith(ClusterNode.REDIRECT_PREFIX)) {
+                throw new AuthenticationException(reason);
+            }
+            if (redirects == MAX_REDIRECTS) {
+                throw new IOException("Too many redirects, last to " + reason);
+            }
+            String owner = reason.substring(ClusterNode.REDIRECT_PREFIX.length());
+            int split = owner.lastIndexOf(':');
+            host = owner.substring(0, split);
+            port = Integer.parseInt(owner.substring(split + 1));
+        }
+    }
+    
+    // ---------- sending ----------
+    
+    // Queues without blocking; completes once written, or fails if the
+    // queue is full, the connection drops first or the client is closed
+    CompletableFuture<Void> send(ChatMessage message) {
+        if (getState() == State.CLOSED) {
+            return CompletableFuture.failedFuture(new IOException("Client is closed"));
+        }
+        if (message.getType() == MessageType.TYPING) {
+            Outgoing queued = queuedTyping.get(typingKey(message));
+            if (queued != null && queued.replace(message)) {
+                return queued.sent;
+            }
+        }
+        
+        Outgoing outgoing = new Outgoing(message);
+        if (!outbound.offer(outgoing)) {
+            return CompletableFuture.failedFuture(new IOException("Too many unsent messages (" + MAX_QUEUED + ")"));
+        }
+        if (message.getType() == MessageType.TYPING) {
+            queuedTyping.put(typingKey(message), outgoing);
+        }
+        
+        // Lost a race with close(); the writer may already have drained the queue
+        if (getState() == State.CLOSED && outbound.remove(outgoing)) {
+            outgoing.sent.completeExceptionally(new IOException("Client is closed"));
+        }
+        return outgoing.sent;
+    }
+    
+    // A null room is the lobby
+    CompletableFuture<Void> sendChat(String room, String text) {
+        ChatMessage message = new ChatMessage(room == null ? MessageType.CHAT : MessageType.ROOM_CHAT,
+            username, text, System.currentTimeMillis());
+        message.setRoom(room);
+        return send(message);
+    }
+    
+    CompletableFuture<Void> sendPrivate(String recipient, String text) {
+        return send(new ChatMessage(MessageType.PRIVATE_MESSAGE, username, recipient + ":" + text, System.currentTimeMillis()));
+    }
+    
+    CompletableFuture<Void> sendTyping(String room, boolean typing) {
+        ChatMessage message = new ChatMessage(MessageType.TYPING, username, typing ? "typing" : "stopped", System.currentTimeMillis());
+        message.setRoom(room);
+        return send(message);
+    }
+    
+    CompletableFuture<Void> joinRoom(String room) {
+        return send(new ChatMessage(MessageType.JOIN_ROOM, username, room, System.currentTimeMillis()));
+    }
+    
+    CompletableFuture<Void> leaveRoom(String room) {
+        return send(new ChatMessage(MessageType.LEAVE_ROOM, username, room, System.currentTimeMillis()));
+    }
+    
+    // Results arrive as SEARCH_RESULT messages, ending with a summary from SERVER
+    CompletableFuture<Void> search(String query) {
+        return send(new ChatMessage(MessageType.SEARCH, username, query, System.currentTimeMillis()));
+    }
+    
+    private static String typingKey(ChatMessage message) {
+        return message.getRoom() != null ? message.getRoom() : "";
+    }
+    
+    // Frames go out in queue order. Everything already queued is written
+    // into the session's buffer and flushed at once, and only then are the
+    // batch's futures completed; a failure fails the whole batch and takes
+    // the session down with it.
+    private void writeLoop() {
+        List<Outgoing> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                Outgoing next = outbound.take();
+                Session current = awaitSession();
+                if (current == null) {
+                    next.sent.completeExceptionally(new IOException("Client is closed"));
+                    continue;
+                }
+                
+                try {
+                    do {
+                        batch.add(next);
+                        current.buffer(claim(next));
+                    } while (batch.size() < MAX_BATCH && (next = outbound.poll()) != null);
+                    current.flush();
+                    
+                    for (Outgoing written : batch) {
+                        trackRooms(written.message);
+                        written.sent.complete(null);
+                    }
+                } catch (IOException e) {
+                    for (Outgoing failed : batch) {
+                        failed.sent.completeExceptionally(e);
+                    }
+                    lost(current);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+        
+        Outgoing left;
+        while ((left = outbound.poll()) != null) {
+            left.sent.completeExceptionally(new IOException("Client is closed"));
+        }
+    }
+    
+    // From here on a newer typing toggle can no longer replace this one
+    private ChatMessage claim(Outgoing outgoing) {
+        ChatMessage message = outgoing.claim();
+        if (message.getType() == MessageType.TYPING) {
+            queuedTyping.remove(typingKey(message), outgoing);
+        }
+        return message;
+    }
+    
+    // Null once the client is closed
+    private synchronized Session awaitSession() throws InterruptedException {
+        while (session == null && state != State.CLOSED) {
+            wait();
+        }
+        return session;
+    }
+    
+    // Lobby seqs count through the message log, which survives a server
+    // restart; room seqs only through one server run. Another user, or a
+    // server that can't resume, makes all of them meaningless.
+    private void forgetStaleSeqs(String offered, String user) {
+        String previous = historyId;
+        if (offered == null || previous == null || !user.equals(username)) {
+            lastSeqs.clear();
+            return;
+        }
+        if (!FrameCodec.lobbyHistoryOf(offered).equals(FrameCodec.lobbyHistoryOf(previous))) {
+            lastSeqs.remove("");
+        }
+        if (!FrameCodec.runOf(offered).equals(FrameCodec.runOf(previous))) {
+            lastSeqs.keySet().removeIf(room -> !room.isEmpty());
+        }
+    }
+    
+    // Rooms are rejoined after a reconnect; the server forgets them with the connection
+    private void trackRooms(ChatMessage message) {
+        if (message.getType() == MessageType.JOIN_ROOM) {
+            joinedRooms.add(message.getContent());
+        } else if (message.getType() == MessageType.LEAVE_ROOM) {
+            joinedRooms.remove(message.getContent());
+        }
+    }
+    
+    // ---------- receiving and reconnecting ----------
+    
+    private void readLoop(Session current) {
+        try {
+            while (true) {
+                ChatMessage message = current.codec.readFrame(current.in);
+                if (message.getSeq() > 0) {
+                    lastSeqs.merge(message.getRoom() != null ? message.getRoom() : "", message.getSeq(), Math::max);
+                }
+                for (Listener listener : listeners) {
+                    try {
+                        listener.onMessage(message);
+                    } catch (RuntimeException e) {
+                        System.err.println("Listener failed on " + message.getType() + ": " + e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            lost(current);
+        }
+    }
+    
+    // Called by the reader or the writer, whichever notices first
+    private void lost(Session current) {
+        current.close();
+        State next;
+        synchronized (this) {
+            if (session != current) {
+                return;
+            }
+            session = null;
+            if (closing) {
+                return;
+            }
+            next = reconnect ? State.RECONNECTING : State.CLOSED;
+            state = next;
+            notifyAll();
+        }
+        
+        fireStateChanged(next);
+        if (next == State.CLOSED) {
+            release();
+        } else {
+            schedule(this::reconnectLater, 0);
+        }
+    }
+    
+    // Connector thread. Backs off exponentially, with jitter so a restarted
+    // server isn't hit by every client in the same instant.
+    private void reconnectLater() {
+        long delay = Math.min(MAX_RECONNECT_MILLIS, MIN_RECONNECT_MILLIS << Math.min(reconnectAttempts, 6));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        reconnectAttempts++;
+        schedule(() -> {
+            try {
+                connect(MessageType.LOGIN, username, password);
+            } catch (IOException e) {
+                if (!closing) {
+                    reconnectLater();
+                }
+            }
+        }, delay);
+    }
+    
+    private void schedule(Runnable task, long delayMillis) {
+        try {
+            connector.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+    
+    // ---------- state ----------
+    
+    synchronized State getState() {
+        return state;
+    }
+    
+    String getUsername() {
+        return username;
+    }
+    
+    // Wire format of the current (or last) session
+    int getProtocolVersion() {
+        return protocolVersion;
+    }
+    
+    // Null unless the current (or last) session negotiated compression
+    CompressionStats getCompressionStats() {
+        return compression;
+    }
+    
+    // Writes what is already queued and says goodbye, waiting at most a second
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closing || state == State.CLOSED) {
+                return;
+            }
+            closing = true;
+        }
+        
+        if (getState() == State.CONNECTED) {
+            try {
+                send(new ChatMessage(MessageType.DISCONNECT, username, "disconnect", System.currentTimeMillis()))
+                    .get(CLOSE_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // Leaving anyway
+            }
+        }
+        
+        Session last;
+        synchronized (this) {
+            last = session;
+            session = null;
+            state = State.CLOSED;
+            notifyAll();
+        }
+        if (last != null) {
+            last.close();
+        }
+        fireStateChanged(State.CLOSED);
+        release();
+    }
+    
+    private void release() {
+        connector.shutdownNow();
+        writer.interrupt();
+    }
+    
+    private void fireStateChanged(State changed) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onStateChanged(changed);
+            } catch (RuntimeException e) {
+                System.err.println("Listener failed on " + changed + ": " + e);
+            }
+        }
+    }
+    
+    // ==================== Outgoing ====================
+    // A typing toggle stays replaceable until the writer claims it
+    private static final class Outgoing {
+        private ChatMessage message;            // Guarded by this until claimed
+        private boolean claimed;
+        private final CompletableFuture<Void> sent = new CompletableFuture<>();
+        
+        Outgoing(ChatMessage message) {
+            this.message = message;
+        }
+        
+        synchronized boolean replace(ChatMessage newer) {
+            if (claimed) {
+                return false;
+            }
+            message = newer;
+            return true;
+        }
+        
+        synchronized ChatMessage claim() {
+            claimed = true;
+            return message;
+        }
+    }
+    
+    // ==================== Session ====================
+    // One authenticated connection. The handshake runs on the connector
+    // thread; afterwards only the writer writes and only the reader reads.
+    private final class Session {
+        private final Socket socket;
+        private final OutputStream out;
+        private final DataInputStream in;
+        private final Map<String, String> typingSent = new HashMap<>();     // Writer only
+        private MessageCodec codec = FrameCodec.SERIALIZED;
+        private CompressionStats compression;
+        private String welcome;
+        private String history;         // The server's history id, if it offered one
+        
+        Session(String host, int port) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                // Pipelined sends shouldn't wait on the previous frame's ACK
+                socket.setTcpNoDelay(true);
+                out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_BYTES);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.write(FrameCodec.opening(FrameCodec.FRAMED_MAGIC));
+                out.flush();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+        
+        // The server's answer to the credentials: AUTH_SUCCESS or AUTH_FAILURE
+        ChatMessage authenticate(MessageType type, String user, String password) throws IOException {
+            ChatMessage authRequest = codec.readFrame(in);
+            if (authRequest.getType() != MessageType.AUTH_REQUEST) {
+                // e.g. an ERROR because the server is full
+                throw new IOException(authRequest.getContent());
+            }
+            negotiate(authRequest);
+            
+            // Only servers that offer a history id know RESUME; the server checks the ids match
+            history = FrameCodec.offeredHistory(authRequest);
+            String previous = historyId;
+            if (history != null && previous != null && user.equals(username)) {
+                ChatMessage resume = new ChatMessage(MessageType.RESUME, user, previous, System.currentTimeMillis());
+                resume.setSeq(lastSeqs.getOrDefault("", 0L));
+                write(resume);
+            }
+            
+            write(new ChatMessage(type, user, user + ":" + password, System.currentTimeMillis()));
+            return codec.readFrame(in);
+        }
+        
+        // Upgrades to the newest wire format both sides speak, if any
+        private void negotiate(ChatMessage authRequest) throws IOException {
+            int version = Math.min(FrameCodec.negotiableVersion(authRequest), maxProtocolVersion);
+            if (version == codec.version()) {
+                return;
+            }
+            
+            write(new ChatMessage(MessageType.HELLO, "", String.valueOf(version), System.currentTimeMillis()));
+            ChatMessage reply = codec.readFrame(in);
+            if (reply.getType() == MessageType.HELLO) {
+                int accepted = FrameCodec.acceptVersion(reply);
+                if (accepted == FrameCodec.COMPRESSED_VERSION) {
+                    compression = new CompressionStats();
+                    codec = new CompressedCodec(CompressedCodec.DEFAULT_MIN_BYTES, compression);
+                } else {
+                    codec = FrameCodec.forVersion(accepted);
+                }
+            }
+        }
+        
+        // Handshake and room rejoins: one frame, flushed at once
+        void write(ChatMessage message) throws IOException {
+            codec.writeFrame(out, message);
+        }
+        
+        // Writer: adds a frame to the batch. A typing state the server already
+        // has from this connection is skipped, and a new connection starts
+        // out as not typing.
+        void buffer(ChatMessage message) throws IOException {
+            if (message.getType() == MessageType.TYPING) {
+                String previous = typingSent.put(typingKey(message), message.getContent());
+                if (message.getContent().equals(previous != null ? previous : "stopped")) {
+                    return;
+                }
+            }
+            byte[] frame = codec.encodeFrame(message);
+            out.write(frame);
+            codec.onFrameWritten(frame);
+        }
+        
+        void flush() throws IOException {
+            out.flush();
+        }
+        
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,594 @@
+// Nexus - ClusterNode.java, ClusterConfig.java and HashRing.java
+// Created by Michael Semera
+// Static multi-node clustering over a lightweight TCP relay
+
+package com.michaelsemera.nexus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// ==================== ClusterConfig Class ====================
+// Static membership read from a properties file, for example:
+//
+//   nodes=node1,node2
+//   node1.client=localhost:5001
+//   node1.relay=localhost:6001
+//   node2.client=localhost:5002
+//   node2.relay=localhost:6002
+//   secret=<random string, the same on every node>
+//
+// "client" is where users connect, "relay" is where peers connect. The
+// secret is optional but without it a relay connection is only checked
+// against the peer's configured host.
+final class ClusterConfig {
+    
+    static final class Node {
+        private final String id;
+        private final String clientHost;
+        private final int clientPort;
+        private final String relayHost;
+        private final int relayPort;
+        
+        private Node(String id, String client, String relay) {
+            this.id = id;
+            this.clientHost = host(client);
+            this.clientPort = port(client);
+            this.relayHost = host(relay);
+            this.relayPort = port(relay);
+        }
+        
+        String getId() {
+            return id;
+        }
+        
+        int getClientPort() {
+            return clientPort;
+        }
+        
+        String getClientAddress() {
+            return clientHost + ":" + clientPort;
+        }
+        
+        InetSocketAddress getRelayAddress() {
+            return new InetSocketAddress(relayHost, relayPort);
+        }
+        
+        // Whether a connection from this address can be the node itself
+        boolean isRelayHost(InetAddress address) {
+            try {
+                for (InetAddress candidate : InetAddress.getAllByName(relayHost)) {
+                    if (candidate.equals(address)) {
+                        return true;
+                    }
+                }
+                return false;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        
+        private static String host(String address) {
+            return address.substring(0, address.lastIndexOf(':'));
+        }
+        
+        private static int port(String address) {
+            return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+        }
+    }
+    
+    private final Map<String, Node> nodes;
+    private final Node self;
+    private final byte[] secret;
+    
+    private ClusterConfig(Map<String, Node> nodes, Node self, byte[] secret) {
+        this.nodes = nodes;
+        this.self = self;
+        this.secret = secret;
+    }
+    
+    static ClusterConfig load(Path file, String selfId) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        
+        Map<String, Node> nodes = new LinkedHashMap<>();
+        for (String id : properties.getProperty("nodes", "").split(",")) {
+            id = id.trim();
+            if (id.isEmpty()) {
+                continue;
+            }
+            String client = properties.getProperty(id + ".client");
+            String relay = properties.getProperty(id + ".relay");
+            if (client == null || relay == null) {
+                throw new IOException(file + ": node " + id + " needs both " + id + ".client and " + id + ".relay");
+            }
+            nodes.put(id, new Node(id, client.trim(), relay.trim()));
+        }
+        
+        Node self = nodes.get(selfId);
+        if (self == null) {
+            throw new IOException(file + ": node-id '" + selfId + "' is not one of " + nodes.keySet());
+        }
+        String secret = properties.getProperty("secret", "").trim();
+        return new ClusterConfig(Collections.unmodifiableMap(nodes), self,
+            secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    Node getSelf() {
+        return self;
+    }
+    
+    Node getNode(String id) {
+        return nodes.get(id);
+    }
+    
+    Collection<Node> getNodes() {
+        return nodes.values();
+    }
+    
+    // Null when the cluster has no shared secret
+    byte[] getSecret() {
+        return secret;
+    }
+    
+    @Override
+    public String toString() {
+        return self.id + " of " + nodes.keySet();
+    }
+}
+
+// ==================== HashRing Class ====================
+// Consistent hashing of usernames onto nodes. Each node owns many points on
+// the ring, so load evens out and adding a node only moves its share of users.
+final class HashRing {
+    
+    private static final int POINTS_PER_NODE = 128;
+    
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    
+    HashRing(Collection<String> nodeIds) {
+        for (String id : nodeIds) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                ring.put(hash(id + "#" + i), id);
+            }
+        }
+    }
+    
+    String ownerOf(String key) {
+        Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+        return (owner != null ? owner : ring.firstEntry()).getValue();
+    }
+    
+    // First 64 bits of MD5: not for security, just well spread
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is always available", e);
+        }
+    }
+}
+
+// ==================== ClusterNode Class ====================
+// Every node keeps a relay link to every peer, so anything crosses the
+// cluster in exactly one hop and is never forwarded again. Relay traffic is
+// ordinary protocol 2 frames: a HELLO naming the sending node, with content
+// "relay <millis> <HMAC-SHA256 of id and millis>" when the cluster has a
+// secret (plain "relay" otherwise), then
+//
+//   CHAT, USER_JOINED, USER_LEFT           lobby broadcasts
+//   TYPING                                 the sender's lobby typists, "alice,bob", at most once per tick
+//   PRIVATE_MESSAGE                        "recipient:text" for a user on the receiving node
+//   PRESENCE                               "=user,user" (full local roster), "+user" or "-user"
+//
+// Users are partitioned by consistent hashing and may only log in on the
+// node that owns them; other nodes answer with a redirect.
+//
+// The HELLO is all that is authenticated. It is only accepted within
+// HELLO_MAX_AGE_MILLIS of being made; the frames after it are neither
+// signed nor encrypted, so the relay belongs on a private network.
+final class ClusterNode {
+    
+    static final String REDIRECT_PREFIX = "Redirect: ";
+    
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final long HELLO_MAX_AGE_MILLIS = 60_000;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    
+    // A relay link carries every remote user's traffic, so it may fall further
+    // behind than one client. Relay typing frames are never dropped: each one
+    // is the sender's whole list, and losing a "stopped" would leave users
+    // typing on the peer for good. There is at most one per tick anyway.
+    private static final int RELAY_HIGH_WATER = 16384;
+    private static final SlowConsumerPolicy RELAY_POLICY =
+        new SlowConsumerPolicy(RELAY_HIGH_WATER, RELAY_HIGH_WATER, RELAY_HIGH_WATER);
+    
+    // Callbacks arrive on relay threads
+    interface Listener {
+        void onBroadcast(ChatMessage message);
+        
+        void onPrivateMessage(String recipient, ChatMessage message);
+        
+        // The link to the peer is (re)established; send it a presence snapshot
+        void onPeerConnected(String node);
+        
+        // op is '=', '+' or '-'
+        void onRemotePresence(String node, char op, List<String> users);
+        
+        // Everyone now typing in the lobby on that node; empty once nobody is
+        void onRemoteTyping(String node, List<String> users);
+        
+        void onPeerLost(String node);
+    }
+    
+    private final ClusterConfig config;
+    private final HashRing ring;
+    private final Listener listener;
+    private final Map<String, RelayLink> links = new LinkedHashMap<>();
+    private final Map<String, String> remoteUsers = new ConcurrentHashMap<>();     // User -> node
+    private ServerSocket relayServer;
+    private volatile boolean running;
+    
+    ClusterNode(ClusterConfig config, Listener listener) {
+        this.config = config;
+        this.listener = listener;
+        
+        List<String> ids = new ArrayList<>();
+        for (ClusterConfig.Node node : config.getNodes()) {
+            ids.add(node.getId());
+            if (node != config.getSelf()) {
+                links.put(node.getId(), new RelayLink(node));
+            }
+        }
+        this.ring = new HashRing(ids);
+    }
+    
+    void start() throws IOException {
+        relayServer = new ServerSocket();
+        relayServer.bind(config.getSelf().getRelayAddress());
+        running = true;
+        
+        startDaemon(this::acceptPeers, "nexus-relay-accept");
+        for (RelayLink link : links.values()) {
+            startDaemon(link, "nexus-relay-" + link.peer.getId());
+        }
+        System.out.println("🔗 Cluster node " + config + ", relay on " + config.getSelf().getRelayAddress());
+        if (config.getSecret() == null) {
+            System.out.println("⚠️  No cluster secret; relay connections are only checked by address");
+        }
+    }
+    
+    void shutdown() {
+        running = false;
+        try {
+            if (relayServer != null) {
+                relayServer.close();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (RelayLink link : links.values()) {
+            link.close();
+        }
+    }
+    
+    boolean owns(String user) {
+        return ring.ownerOf(user).equals(config.getSelf().getId());
+    }
+    
+    ClusterConfig.Node ownerOf(String user) {
+        return config.getNode(ring.ownerOf(user));
+    }
+    
+    boolean isOnlineRemotely(String user) {
+        return remoteUsers.containsKey(user);
+    }
+    
+    // Lobby traffic to every peer
+    void broadcast(EncodedMessage message) {
+        for (RelayLink link : links.values()) {
+            link.send(message);
+        }
+    }
+    
+    // False if the recipient isn't online anywhere else
+    boolean sendPrivate(String sender, String recipient, String text) {
+        String node = remoteUsers.get(recipient);
+        RelayLink link = node != null ? links.get(node) : null;
+        if (link == null) {
+            return false;
+        }
+        link.send(new EncodedMessage(
+            new ChatMessage(MessageType.PRIVATE_MESSAGE, sender, recipient + ":" + text, System.currentTimeMillis())));
+        return true;
+    }
+    
+    // Local joins and leaves, to every peer
+    void publishPresence(char op, String user) {
+        EncodedMessage message = presence(op + user);
+        for (RelayLink link : links.values()) {
+            link.send(message);
+        }
+    }
+    
+    // Full local roster, to one peer
+    void sendPresenceSnapshot(String node, List<String> users) {
+        RelayLink link = links.get(node);
+        if (link != null) {
+            link.send(presence("=" + String.join(",", users)));
+        }
+    }
+    
+    private EncodedMessage presence(String content) {
+        return new EncodedMessage(new ChatMessage(MessageType.PRESENCE, config.getSelf().getId(), content, System.currentTimeMillis()));
+    }
+    
+    private void acceptPeers() {
+        while (running) {
+            try {
+                Socket socket = relayServer.accept();
+                startDaemon(() -> receive(socket), "nexus-relay-in");
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Relay accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    // Inbound side of a peer's link: dispatches frames until the peer goes away
+    private void receive(Socket socket) {
+        MessageCodec codec = FrameCodec.BINARY;
+        String node = null;
+        
+        try (Socket peer = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(peer.getInputStream()));
+            ChatMessage hello = codec.readFrame(in);
+            if (hello.getType() != MessageType.HELLO || !links.containsKey(hello.getSender()) || !isAuthentic(hello, peer)) {
+                System.err.println("Rejected relay connection from " + peer.getRemoteSocketAddress());
+                return;
+            }
+            node = hello.getSender();
+            System.out.println("🔗 Relay link from " + node + " is up");
+            
+            while (running) {
+                ChatMessage message = codec.readFrame(in);
+                try {
+                    dispatch(node, message);
+                } catch (RuntimeException e) {
+                    System.err.println("Skipped bad relay " + message.getType() + " from " + node + ": " + e);
+                }
+            }
+            
+        } catch (IOException | RuntimeException e) {
+            // Peer closed or failed, or sent something that isn't a frame
+        } finally {
+            if (node != null) {
+                remoteUsers.values().removeIf(node::equals);
+                listener.onPeerLost(node);
+                System.out.println("🔗 Relay link from " + node + " is down");
+            }
+        }
+    }
+    
+    // With a secret the HELLO must carry a recent MAC of the sender's id;
+    // without one the connection must at least come from that node's host
+    private boolean isAuthentic(ChatMessage hello, Socket peer) {
+        String node = hello.getSender();
+        if (config.getSecret() == null) {
+            return config.getNode(node).isRelayHost(peer.getInetAddress());
+        }
+        
+        String[] parts = hello.getContent() != null ? hello.getContent().split(" ") : new String[0];
+        if (parts.length != 3 || !"relay".equals(parts[0])) {
+            return false;
+        }
+        try {
+            long madeAt = Long.parseLong(parts[1]);
+            return Math.abs(System.currentTimeMillis() - madeAt) <= HELLO_MAX_AGE_MILLIS
+                && MessageDigest.isEqual(parts[2].getBytes(StandardCharsets.US_ASCII),
+                    helloMac(node, madeAt).getBytes(StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+    
+    private String hello() {
+        if (config.getSecret() == null) {
+            return "relay";
+        }
+        long now = System.currentTimeMillis();
+        return "relay " + now + " " + helloMac(config.getSelf().getId(), now);
+    }
+    
+    private String helloMac(String node, long madeAt) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(config.getSecret(), MAC_ALGORITHM));
+            mac.update(node.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return Base64.getEncoder().encodeToString(mac.doFinal(Long.toString(madeAt).getBytes(StandardCharsets.US_ASCII)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is always available", e);
+        }
+    }
+    
+    private void dispatch(String node, ChatMessage message) {
+        switch (message.getType()) {
+            case CHAT:
+            case USER_JOINED:
+            case USER_LEFT:
+                listener.onBroadcast(message);
+                break;
+                
+            case TYPING:
+                String typists = message.getSender();
+                listener.onRemoteTyping(node, typists == null || typists.isEmpty()
+                    ? List.of()
+                    : Arrays.asList(typists.split(",")));
+                break;
+                
+            case PRIVATE_MESSAGE:
+                String[] parts = message.getContent() != null ? message.getContent().split(":", 2) : new String[0];
+                if (parts.length == 2) {
+                    message.setContent(parts[1]);
+                    listener.onPrivateMessage(parts[0], message);
+                }
+                break;
+                
+            case PRESENCE:
+                String content = message.getContent();
+                char op = content != null && !content.isEmpty() ? content.charAt(0) : 0;
+                if (op != '=' && op != '+' && op != '-') {
+                    System.err.println("Skipped malformed relay PRESENCE from " + node);
+                    break;
+                }
+                List<String> users = new ArrayList<>(Arrays.asList(content.substring(1).split(",")));
+                users.removeIf(String::isEmpty);
+                
+                if (op == '=') {
+                    remoteUsers.values().removeIf(node::equals);
+                }
+                for (String user : users) {
+                    if (op == '-') {
+                        remoteUsers.remove(user, node);
+                    } else {
+                        remoteUsers.put(user, node);
+                    }
+                }
+                listener.onRemotePresence(node, op, users);
+                break;
+                
+            default:
+                System.out.println("Unexpected relay message from " + node + ": " + message.getType());
+        }
+    }
+    
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    // Outbound side of the link to one peer, reconnecting while the node runs.
+    // Messages sent while the link is down are dropped; presence is resent
+    // as a full snapshot once it is back. A peer that stops reading is
+    // treated the same way: once RELAY_HIGH_WATER messages are queued the
+    // link is closed, which also unblocks a write stuck on a full TCP window.
+    private final class RelayLink implements Runnable {
+        
+        private final ClusterConfig.Node peer;
+        private final OutboundQueue queue = new OutboundQueue(RELAY_POLICY);
+        private volatile boolean connected;
+        private volatile Socket socket;
+        
+        RelayLink(ClusterConfig.Node peer) {
+            this.peer = peer;
+        }
+        
+        void send(EncodedMessage message) {
+            if (connected && queue.offer(message, FrameCodec.BINARY) == OutboundQueue.Offer.OVERFLOW) {
+                overflowed();
+            }
+        }
+        
+        @Override
+        public void run() {
+            while (running) {
+                try (Socket link = new Socket()) {
+                    socket = link;
+                    link.connect(peer.getRelayAddress(), (int) RECONNECT_MILLIS);
+                    link.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(link.getOutputStream());
+                    
+                    out.write(FrameCodec.BINARY.encodeFrame(
+                        new ChatMessage(MessageType.HELLO, config.getSelf().getId(), hello(), System.currentTimeMillis())));
+                    out.flush();
+                    
+                    queue.clear();
+                    connected = true;
+                    listener.onPeerConnected(peer.getId());
+                    
+                    OutboundQueue.Entry entry;
+                    while (running && (entry = queue.take()) != null) {
+                        do {
+                            out.write(entry.frame());
+                        } while ((entry = queue.poll()) != null);
+                        out.flush();
+                    }
+                    
+                } catch (IOException e) {
+                    // Peer not up yet, or the link broke; retry below
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                }
+                
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        
+        void close() {
+            connected = false;
+            queue.close();
+            closeSocket();
+        }
+        
+        private void overflowed() {
+            if (connected) {
+                connected = false;
+                System.err.println("🔗 Relay link to " + peer.getId() + " fell " + RELAY_HIGH_WATER + " messages behind; reconnecting");
+                closeSocket();
+            }
+        }
+        
+        private void closeSocket() {
+            Socket current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+// Nexus - ServerConfig.java
+// Created by Michael Semera
+// Startup settings for ChatServer
+
+package com.michaelsemera.nexus;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+// ==================== ServerConfig Class ====================
+class ServerConfig {
+    
+    // How client connections are executed
+    enum Mode {
+        THREAD_POOL,        // One pooled platform thread per client
+        VIRTUAL_THREADS,    // One virtual thread per client (JDK 21+)
+        REACTOR             // Non-blocking selector event loops
+    }
+    
+    private int port = 5000;
+    private int maxClients = 50;
+    private int maxConnections = 10000;
+    private Mode mode = Mode.THREAD_POOL;
+    private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int authTimeoutMillis = 30000;
+    private int authThreads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private int authQueue = 1024;
+    private int authIterations = 100000;
+    private int authCacheSeconds = 300;         // 0 hashes every login
+    private int authAttemptBurst = 10;
+    private int authAttemptsPerMinute = 30;
+    private Path userDirectory;                 // null keeps accounts in memory only
+    private int userCompactBytes = 16 * 1024 * 1024;
+    private SlowConsumerPolicy slowConsumerPolicy = new SlowConsumerPolicy(64, 256, 4096);
+    private FlushPolicy flushPolicy = new FlushPolicy(16 * 1024, 0);
+    private boolean compression = true;         // Offer protocol 3 to clients that ask
+    private int compressMinBytes = CompressedCodec.DEFAULT_MIN_BYTES;
+    private int historyCapacity = 100;
+    private int historyReplay = 100;
+    private int resumeReplay = 1000;            // Missed messages replayed to a resuming client
+    private int maxRooms = 10000;
+    private int roomShards = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int roomHistoryCapacity = 50;
+    private int typingTickMillis = 250;
+    private int typingExpiryMillis = TypingAggregator.DEFAULT_EXPIRY_MILLIS;
+    private int searchCapacity = 200000;       // 0 disables search
+    private int searchPageSize = 20;
+    private Path logDirectory;                  // null keeps history in memory only
+    private int logSegmentBytes = 64 * 1024 * 1024;
+    private MessageLog.FsyncPolicy logFsyncPolicy = MessageLog.FsyncPolicy.INTERVAL;
+    private int logFsyncIntervalMillis = 1000;
+    private long logRetentionBytes = 1024L * 1024 * 1024;
+    private int logRetentionHours = 7 * 24;
+    private int metricsPort;                    // 0 disables the HTTP endpoint
+    private boolean jmx = true;
+    private ClusterConfig cluster;              // null runs a standalone server
+    
+    // Reads --key=value arguments, falling back to -Dnexus.key system properties
+    static ServerConfig fromArgs(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                int split = arg.indexOf('=');
+                options.put(arg.substring(2, split), arg.substring(split + 1));
+            }
+        }
+        
+        ServerConfig config = new ServerConfig();
+        config.port = intOption(options, "port", config.port);
+        config.maxClients = intOption(options, "max-clients", config.maxClients);
+        config.maxConnections = intOption(options, "max-connections", config.maxConnections);
+        config.mode = Mode.valueOf(option(options, "mode", config.mode.name()).toUpperCase().replace('-', '_'));
+        config.eventLoops = intOption(options, "event-loops", config.eventLoops);
+        config.authTimeoutMillis = intOption(options, "auth-timeout-ms", config.authTimeoutMillis);
+        config.authThreads = intOption(options, "auth-threads", config.authThreads);
+        config.authQueue = intOption(options, "auth-queue", config.authQueue);
+        config.authIterations = intOption(options, "auth-iterations", config.authIterations);
+        config.authCacheSeconds = intOption(options, "auth-cache-seconds", config.authCacheSeconds);
+        config.authAttemptBurst = intOption(options, "auth-attempt-burst", config.authAttemptBurst);
+        config.authAttemptsPerMinute = intOption(options, "auth-attempts-per-minute", config.authAttemptsPerMinute);
+        String userDir = option(options, "user-dir", "");
+        config.userDirectory = userDir.isEmpty() ? null : Paths.get(userDir);
+        config.userCompactBytes = intOption(options, "user-compact-bytes", config.userCompactBytes);
+        config.slowConsumerPolicy = new SlowConsumerPolicy(
+            intOption(options, "outbound-drop-typing", config.slowConsumerPolicy.getDropTypingDepth()),
+            intOption(options, "outbound-coalesce", config.slowConsumerPolicy.getCoalesceDepth()),
+            intOption(options, "outbound-high-water", config.slowConsumerPolicy.getHighWaterMark()));
+        config.flushPolicy = new FlushPolicy(
+            intOption(options, "write-buffer-bytes", config.flushPolicy.getBufferBytes()),
+            intOption(options, "write-flush-delay-us", config.flushPolicy.getFlushDelayMicros()));
+        config.compression = Boolean.parseBoolean(option(options, "compression", String.valueOf(config.compression)));
+        config.compressMinBytes = intOption(options, "compress-min-bytes", config.compressMinBytes);
+        config.historyCapacity = intOption(options, "history-capacity", config.historyCapacity);
+        config.historyReplay = Math.min(intOption(options, "history-replay", config.historyReplay), config.historyCapacity);
+        config.resumeReplay = intOption(options, "resume-replay", config.resumeReplay);
+        
+        config.maxRooms = intOption(options, "max-rooms", config.maxRooms);
+        config.roomShards = intOption(options, "room-shards", config.roomShards);
+        config.roomHistoryCapacity = intOption(options, "room-history-capacity", config.roomHistoryCapacity);
+        config.typingTickMillis = intOption(options, "typing-tick-ms", config.typingTickMillis);
+        config.typingExpiryMillis = intOption(options, "typing-expiry-ms", config.typingExpiryMillis);
+        config.searchCapacity = intOption(options, "search-capacity", config.searchCapacity);
+        config.searchPageSize = intOption(options, "search-page-size", config.searchPageSize);
+        
+        String logDir = option(options, "log-dir", "");
+        config.logDirectory = logDir.isEmpty() ? null : Paths.get(logDir);
+        config.logSegmentBytes = intOption(options, "log-segment-bytes", config.logSegmentBytes);
+        config.logFsyncPolicy = MessageLog.FsyncPolicy.valueOf(option(options, "log-fsync", config.logFsyncPolicy.name()).toUpperCase());
+        config.logFsyncIntervalMillis = intOption(options, "log-fsync-interval-ms", config.logFsyncIntervalMillis);
+        config.logRetentionBytes = Long.parseLong(option(options, "log-retention-bytes", String.valueOf(config.logRetentionBytes)));
+        config.logRetentionHours = intOption(options, "log-retention-hours", config.logRetentionHours);
+        config.metricsPort = intOption(options, "metrics-port", config.metricsPort);
+        config.jmx = Boolean.parseBoolean(option(options, "jmx", String.valueOf(config.jmx)));
+        
+        // The cluster file decides which port this node serves clients on
+        String clusterConfig = option(options, "cluster-config", "");
+        if (!clusterConfig.isEmpty()) {
+            String nodeId = option(options, "node-id", "");
+            if (nodeId.isEmpty()) {
+                throw new IllegalArgumentException("cluster-config needs node-id");
+            }
+            try {
+                config.cluster = ClusterConfig.load(Paths.get(clusterConfig), nodeId);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read cluster-config: " + e.getMessage(), e);
+            }
+            config.port = config.cluster.getSelf().getClientPort();
+        }
+        
+        // Every record must fit in one segment
+        if (config.logSegmentBytes < 2 * FrameCodec.MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("log-segment-bytes must be at least " + 2 * FrameCodec.MAX_FRAME_SIZE +
+                ", got " + config.logSegmentBytes);
+        }
+        
+        // Replays and result pages are queued in one burst and must not trip the slow-consumer cutoff
+        if (config.historyReplay >= config.slowConsumerPolicy.getHighWaterMark()) {
+            throw new IllegalArgumentException("history-replay must be below outbound-high-water ("
+                + config.slowConsumerPolicy.getHighWaterMark() + "), got " + config.historyReplay);
+        }
+        if (config.resumeReplay < 1 || config.resumeReplay >= config.slowConsumerPolicy.getHighWaterMark()) {
+            throw new IllegalArgumentException("resume-replay must be between 1 and outbound-high-water ("
+                + config.slowConsumerPolicy.getHighWaterMark() + "), got " + config.resumeReplay);
+        }
+        if (config.searchPageSize < 1 || config.searchPageSize >= config.slowConsumerPolicy.getHighWaterMark()) {
+            throw new IllegalArgumentException("search-page-size must be between 1 and outbound-high-water ("
+                + config.slowConsumerPolicy.getHighWaterMark() + "), got " + config.searchPageSize);
+        }
+        return config;
+    }
+    
+    private static String option(Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        if (value == null) {
+            value = System.getProperty("nexus." + key);
+        }
+        return value != null ? value.trim() : defaultValue;
+    }
+    
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return Integer.parseInt(option(options, key, String.valueOf(defaultValue)));
+    }
+    
+    // Getters
+    public int getPort() {
+        return port;
+    }
+    
+    public int getMaxClients() {
+        return maxClients;
+    }
+    
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+    
+    // Connections served at once. Each thread_pool connection holds a pool
+    // thread, so any beyond the pool would only wait in its queue.
+    public int getAdmissionLimit() {
+        return mode == Mode.THREAD_POOL ? Math.min(maxClients, maxConnections) : maxConnections;
+    }
+    
+    public Mode getMode() {
+        return mode;
+    }
+    
+    public int getEventLoops() {
+        return eventLoops;
+    }
+    
+    public int getAuthTimeoutMillis() {
+        return authTimeoutMillis;
+    }
+    
+    public int getAuthThreads() {
+        return authThreads;
+    }
+    
+    public int getAuthQueue() {
+        return authQueue;
+    }
+    
+    public int getAuthIterations() {
+        return authIterations;
+    }
+    
+    public int getAuthCacheSeconds() {
+        return authCacheSeconds;
+    }
+    
+    public int getAuthAttemptBurst() {
+        return authAttemptBurst;
+    }
+    
+    public int getAuthAttemptsPerMinute() {
+        return authAttemptsPerMinute;
+    }
+    
+    public Path getUserDirectory() {
+        return userDirectory;
+    }
+    
+    public int getUserCompactBytes() {
+        return userCompactBytes;
+    }
+    
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+    
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+    
+    public boolean isCompression() {
+        return compression;
+    }
+    
+    public int getCompressMinBytes() {
+        return compressMinBytes;
+    }
+    
+    public int getHistoryCapacity() {
+        return historyCapacity;
+    }
+    
+    public int getHistoryReplay() {
+        return historyReplay;
+    }
+    
+    public int getResumeReplay() {
+        return resumeReplay;
+    }
+    
+    public int getMaxRooms() {
+        return maxRooms;
+    }
+    
+    public int getRoomShards() {
+        return roomShards;
+    }
+    
+    public int getRoomHistoryCapacity() {
+        return roomHistoryCapacity;
+    }
+    
+    public int getTypingTickMillis() {
+        return typingTickMillis;
+    }
+    
+    public int getTypingExpiryMillis() {
+        return typingExpiryMillis;
+    }
+    
+    public int getSearchCapacity() {
+        return searchCapacity;
+    }
+    
+    public int getSearchPageSize() {
+        return searchPageSize;
+    }
+    
+    public Path getLogDirectory() {
+        return logDirectory;
+    }
+    
+    public int getLogSegmentBytes() {
+        return logSegmentBytes;
+    }
+    
+    public MessageLog.FsyncPolicy getLogFsyncPolicy() {
+        return logFsyncPolicy;
+    }
+    
+    public int getLogFsyncIntervalMillis() {
+        return logFsyncIntervalMillis;
+    }
+    
+    public long getLogRetentionBytes() {
+        return logRetentionBytes;
+    }
+    
+    public long getLogRetentionMillis() {
+        return logRetentionHours * 3600_000L;
+    }
+    
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+    
+    public boolean isJmx() {
+        return jmx;
+    }
+    
+    public ClusterConfig getCluster() {
+        return cluster;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("mode=%s, port=%d, maxClients=%d, maxConnections=%d, eventLoops=%d, outbound=[%s], writes=[%s], history=%d (replay %d, resume %d), rooms=%d on %d shards, log=%s, metrics=%s, cluster=%s",
+            mode, port, maxClients, maxConnections, eventLoops, slowConsumerPolicy, flushPolicy, historyCapacity, historyReplay, resumeReplay, maxRooms, roomShards,
+            logDirectory != null ? logDirectory : "off", metricsPort > 0 ? metricsPort : "off", cluster != null ? cluster : "off");
+    }
+}
@@ -0,0 +1,114 @@
+// Nexus - LatencyHistogram.java
+// Created by Michael Semera
+// Fixed-size log-linear histogram for latency percentiles
+
+package com.michaelsemera.nexus;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// ==================== LatencyHistogram Class ====================
+// Buckets in the style of HdrHistogram: values below 128 get a bucket each,
+// and every power of two above that is split into 64 equal buckets. Any
+// value is therefore off by at most 1/64 (about 1.6%), and the whole range
+// of a long fits in a few thousand counters. Recording is a couple of
+// shifts and an atomic increment, safe from any number of threads;
+// percentiles are read from a live, slightly moving view.
+//
+// Units are up to the caller; the load generator and server metrics both
+// record microseconds.
+final class LatencyHistogram {
+    
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKET_BITS = 6;           // 64 buckets per power of two
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    
+    // Negative values are recorded as 0
+    void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // Lost a race with a larger value; retry
+        }
+    }
+    
+    long getCount() {
+        return count.sum();
+    }
+    
+    long getSum() {
+        return sum.sum();
+    }
+    
+    long getMax() {
+        return max.get();
+    }
+    
+    double getMean() {
+        long n = count.sum();
+        return n > 0 ? (double) sum.sum() / n : 0.0;
+    }
+    
+    // Smallest recorded bucket that covers the given percentile (0-100), as
+    // that bucket's highest value; 0 when nothing has been recorded
+    long valueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(highestValueIn(i), getMax());
+            }
+        }
+        return getMax();
+    }
+    
+    // Clears all counts; values recorded concurrently may land on either side
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+    
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        // Shift so the top seven bits remain; the lower six of them pick the sub-bucket
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+    
+    static long highestValueIn(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = SUB_BUCKETS + (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
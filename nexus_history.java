@@ -0,0 +1,98 @@
+// Nexus - HistoryRing.java
+// Created by Michael Semera
+// Preallocated lock-free ring buffer holding the most recent messages
+
+package com.michaelsemera.nexus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// ==================== HistoryRing Class ====================
+// Appends claim a sequence number and overwrite the oldest slot, so a write
+// costs O(1) no matter how large the capacity. Each slot records the
+// sequence it holds; readers check it before and after reading the value
+// and skip slots that are mid-write or already overwritten. Neither side
+// ever blocks or retries.
+final class HistoryRing<T> {
+    
+    private static final long WRITING = -1;
+    
+    private final int capacity;
+    private final AtomicReferenceArray<T> values;
+    private final AtomicLongArray sequences;
+    private final AtomicLong nextSequence = new AtomicLong();
+    
+    HistoryRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("History capacity must be positive, got " + capacity);
+        }
+        this.capacity = capacity;
+        this.values = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, WRITING);
+        }
+    }
+    
+    // Returns the sequence number assigned to the value
+    long append(T value) {
+        long sequence = nextSequence.getAndIncrement();
+        int slot = slotOf(sequence);
+        sequences.set(slot, WRITING);
+        values.set(slot, value);
+        sequences.set(slot, sequence);
+        return sequence;
+    }
+    
+    // Up to max of the newest values, oldest first
+    List<T> snapshot(int max) {
+        return since(0, max);
+    }
+    
+    // Up to max of the newest values numbered first or later, oldest first
+    List<T> since(long first, int max) {
+        long end = nextSequence.get();
+        return range(Math.max(first, end - Math.min(max, capacity)), end);
+    }
+    
+    // Values numbered first up to (not including) end that are still held, oldest first
+    List<T> range(long first, long end) {
+        long next = nextSequence.get();
+        long start = Math.max(Math.max(0, first), next - capacity);
+        end = Math.min(end, next);
+        List<T> result = new ArrayList<>((int) Math.max(0, end - start));
+        
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = slotOf(sequence);
+            if (sequences.get(slot) != sequence) {
+                continue;
+            }
+            T value = values.get(slot);
+            if (sequences.get(slot) == sequence) {
+                result.add(value);
+            }
+        }
+        return result;
+    }
+    
+    int capacity() {
+        return capacity;
+    }
+    
+    // Sequence number the next append will get
+    long nextSequence() {
+        return nextSequence.get();
+    }
+    
+    // Number of values currently held
+    int size() {
+        return (int) Math.min(nextSequence.get(), capacity);
+    }
+    
+    private int slotOf(long sequence) {
+        return (int) (sequence % capacity);
+    }
+}
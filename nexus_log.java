@@ -0,0 +1,501 @@
+// Nexus - MessageLog.java
+// Created by Michael Semera
+// Durable append-only chat log on memory-mapped, segmented files
+
+package com.michaelsemera.nexus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// ==================== MessageLog Class ====================
+// Chat messages are appended by one background writer, so the message path
+// only enqueues. The writer drains everything queued into the mapped segment
+// and then syncs once per batch (group commit), as the fsync policy allows.
+//
+// On disk, <dir>/<base offset>.log holds records
+//   int      length of the frame
+//   int      CRC32C of the frame
+//   byte[]   the message as a protocol 2 frame (the bytes clients receive)
+// and <base offset>.idx is a sparse index of (relative offset, position)
+// pairs, one per INDEX_INTERVAL_BYTES of log. Recovery and reads jump to the
+// nearest index entry and scan forward from there. <dir>/log.id holds a
+// random id made with the first segment, so clients can tell this log's
+// offsets from those of a log that was deleted and started over.
+//
+// A write that fails stops the log for good: nothing after it is written,
+// so every record on disk still sits at the offset it was given. log.id is
+// removed at the same time, because lobby seqs handed out after the failure
+// have no record behind them; the next start makes a new id and resuming
+// clients get a full replay instead of a wrong one.
+final class MessageLog implements Closeable {
+    
+    // When appended records are forced to disk
+    enum FsyncPolicy {
+        NEVER,      // Leave write-back to the OS
+        INTERVAL,   // At most once per fsync interval
+        ALWAYS      // After every batch
+    }
+    
+    private static final int MAX_BATCH = 1024;
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+    private static final String ID_FILE = "log.id";
+    
+    // Wakes the writer on close; interrupting it would close its FileChannels
+    private static final EncodedMessage CLOSE_MARKER =
+        new EncodedMessage(new ChatMessage(MessageType.SERVER_MESSAGE, "SERVER", "close", 0));
+    
+    private final Path directory;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    
+    // Oldest first; only the writer adds or removes, readers iterate snapshots
+    private final List<LogSegment> segments = new CopyOnWriteArrayList<>();
+    private final LinkedBlockingQueue<EncodedMessage> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile long nextOffset;
+    private volatile boolean closed;
+    private volatile Exception failure;
+    private String id;
+    
+    private MessageLog(ServerConfig config) {
+        this.directory = config.getLogDirectory();
+        this.segmentBytes = config.getLogSegmentBytes();
+        this.fsyncPolicy = config.getLogFsyncPolicy();
+        this.fsyncIntervalMillis = config.getLogFsyncIntervalMillis();
+        this.retentionBytes = config.getLogRetentionBytes();
+        this.retentionMillis = config.getLogRetentionMillis();
+        this.writer = new Thread(this::writeLoop, "nexus-log");
+        this.writer.setDaemon(true);
+    }
+    
+    // Recovers existing segments, then starts the background writer
+    static MessageLog open(ServerConfig config) throws IOException {
+        MessageLog log = new MessageLog(config);
+        log.recover();
+        log.writer.start();
+        return log;
+    }
+    
+    // Non-blocking; the record becomes durable according to the fsync policy
+    void append(EncodedMessage message) {
+        if (!closed && failure == null) {
+            pending.add(message);
+        }
+    }
+    
+    // Offset the next appended message will get
+    long nextOffset() {
+        return nextOffset;
+    }
+    
+    String id() {
+        return id;
+    }
+    
+    // True once a write has failed; from then on nothing more is written
+    boolean isFailed() {
+        return failure != null;
+    }
+    
+    long firstOffset() {
+        return segments.isEmpty() ? nextOffset : segments.get(0).baseOffset;
+    }
+    
+    // The newest count messages that have been written, oldest first
+    List<ChatMessage> tail(int count) throws IOException {
+        long end = nextOffset;
+        return read(Math.max(firstOffset(), end - count), count);
+    }
+    
+    // Up to max messages starting at offset, oldest first
+    List<ChatMessage> read(long offset, int max) throws IOException {
+        List<ChatMessage> result = new ArrayList<>();
+        for (LogSegment segment : segments) {
+            if (result.size() >= max) {
+                break;
+            }
+            if (segment.baseOffset + segment.count > offset) {
+                segment.read(Math.max(offset, segment.baseOffset), max - result.size(), result);
+            }
+        }
+        return result;
+    }
+    
+    // Stops accepting appends, writes what is queued and syncs it
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pending.add(CLOSE_MARKER);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        for (LogSegment segment : segments) {
+            segment.close();
+        }
+    }
+    
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LogSegment.LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - LogSegment.LOG_SUFFIX.length())));
+            }
+        }
+        baseOffsets.sort(null);
+        
+        for (long baseOffset : baseOffsets) {
+            LogSegment segment = LogSegment.open(directory, baseOffset, segmentBytes);
+            segment.recover();
+            segments.add(segment);
+            nextOffset = baseOffset + segment.count;
+        }
+        
+        if (segments.isEmpty()) {
+            segments.add(LogSegment.open(directory, 0, segmentBytes));
+        }
+        
+        // A log from before ids existed gets one now; its old offsets just won't match
+        Path idFile = directory.resolve(ID_FILE);
+        if (Files.exists(idFile)) {
+            id = new String(Files.readAllBytes(idFile), StandardCharsets.US_ASCII).trim();
+        } else {
+            id = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            Files.write(idFile, id.getBytes(StandardCharsets.US_ASCII));
+        }
+        System.out.println("💾 Message log: " + segments.size() + " segment(s), offsets " + firstOffset() + "-" + nextOffset +
+            " in " + directory.toAbsolutePath() + " (fsync " + fsyncPolicy.name().toLowerCase() + ")");
+    }
+    
+    private void writeLoop() {
+        List<EncodedMessage> batch = new ArrayList<>();
+        long lastSync = System.currentTimeMillis();
+        long lastRetentionCheck = lastSync;
+        boolean unsynced = false;
+        
+        while (!closed || !pending.isEmpty()) {
+            try {
+                EncodedMessage first = pending.poll(Math.max(1, fsyncIntervalMillis), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, MAX_BATCH - 1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            
+            try {
+                for (EncodedMessage message : batch) {
+                    if (message != CLOSE_MARKER && failure == null) {
+                        write(message);
+                    }
+                }
+                unsynced |= !batch.isEmpty();
+                batch.clear();
+                
+                long now = System.currentTimeMillis();
+                boolean sync = fsyncPolicy == FsyncPolicy.ALWAYS
+                    || (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastSync >= fsyncIntervalMillis);
+                if (unsynced && sync) {
+                    active().force();
+                    lastSync = now;
+                    unsynced = false;
+                }
+                
+                // Segments also age out on a quiet server, where nothing rolls
+                if (now - lastRetentionCheck >= RETENTION_CHECK_MILLIS && failure == null) {
+                    expireByAge(now);
+                    lastRetentionCheck = now;
+                }
+                
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                batch.clear();
+            }
+        }
+        
+        if (unsynced && fsyncPolicy != FsyncPolicy.NEVER) {
+            try {
+                active().force();
+            } catch (RuntimeException e) {
+                System.err.println("Message log sync failed: " + e.getMessage());
+            }
+        }
+    }
+    
+    private void fail(Exception e) {
+        failure = e;
+        pending.clear();
+        System.err.println("❌ Message log write failed, no more messages will be logged until restart: " + e);
+        try {
+            Files.deleteIfExists(directory.resolve(ID_FILE));
+        } catch (IOException idFailed) {
+            System.err.println("Could not remove " + ID_FILE + "; resumes after a restart may miss messages: " + idFailed);
+        }
+    }
+    
+    private void write(EncodedMessage message) throws IOException {
+        byte[] frame = message.frameFor(FrameCodec.BINARY);
+        if (!active().append(frame)) {
+            roll();
+            if (!active().append(frame)) {
+                throw new IOException("Record of " + frame.length + " bytes exceeds the segment size");
+            }
+        }
+        nextOffset++;
+    }
+    
+    private LogSegment active() {
+        return segments.get(segments.size() - 1);
+    }
+    
+    // Seals the active segment and starts a new one at the next offset
+    private void roll() throws IOException {
+        LogSegment sealed = active();
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            sealed.force();
+        }
+        segments.add(LogSegment.open(directory, nextOffset, segmentBytes));
+        applyRetention();
+    }
+    
+    // An active segment whose newest record is past the age limit is rolled,
+    // so it can be deleted too; otherwise only sealed segments are checked
+    private void expireByAge(long now) throws IOException {
+        LogSegment current = active();
+        if (current.size > 0 && current.lastAppendMillis < now - retentionMillis) {
+            roll();
+        } else {
+            applyRetention();
+        }
+    }
+    
+    // Deletes the oldest sealed segments beyond the size or age limit
+    private void applyRetention() throws IOException {
+        long totalBytes = 0;
+        for (LogSegment segment : segments) {
+            totalBytes += segment.size;
+        }
+        
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        while (segments.size() > 1) {
+            LogSegment oldest = segments.get(0);
+            if (totalBytes <= retentionBytes && oldest.lastAppendMillis >= cutoff) {
+                break;
+            }
+            segments.remove(0);
+            totalBytes -= oldest.size;
+            oldest.delete();
+        }
+    }
+}
+
+// ==================== LogSegment Class ====================
+// One mapped log file plus its mapped sparse index. The writer appends;
+// readers see records up to the published size.
+final class LogSegment {
+    
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+    
+    private static final int RECORD_HEADER = 8;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int INDEX_ENTRY = 8;
+    
+    final long baseOffset;
+    private final Path logFile;
+    private final Path indexFile;
+    private final FileChannel logChannel;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer log;
+    private final MappedByteBuffer index;
+    private final CRC32C crc = new CRC32C();
+    
+    volatile int size;              // Bytes of complete records
+    volatile int count;             // Number of records
+    volatile long lastAppendMillis;
+    private volatile int indexEntries;
+    private int lastIndexedPosition;
+    
+    private LogSegment(long baseOffset, Path logFile, Path indexFile, int segmentBytes) throws IOException {
+        this.baseOffset = baseOffset;
+        this.logFile = logFile;
+        this.indexFile = indexFile;
+        this.logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, (segmentBytes / INDEX_INTERVAL_BYTES + 1) * INDEX_ENTRY);
+        this.lastAppendMillis = Files.getLastModifiedTime(logFile).toMillis();
+    }
+    
+    static LogSegment open(Path directory, long baseOffset, int segmentBytes) throws IOException {
+        String name = String.format("%020d", baseOffset);
+        return new LogSegment(baseOffset, directory.resolve(name + LOG_SUFFIX), directory.resolve(name + INDEX_SUFFIX), segmentBytes);
+    }
+    
+    // Finds the end of the valid records. Scanning starts at the last index
+    // entry that still points at a valid record, so only the tail is read;
+    // anything after the first torn or corrupt record is discarded.
+    void recover() {
+        int entries = 0;
+        while (entries * INDEX_ENTRY < index.capacity() && index.getInt(entries * INDEX_ENTRY + 4) != 0) {
+            entries++;
+        }
+        
+        int entry = entries - 1;
+        while (entry >= 0 && recordLength(index.getInt(entry * INDEX_ENTRY + 4)) < 0) {
+            entry--;
+        }
+        int records = entry >= 0 ? index.getInt(entry * INDEX_ENTRY) : 0;
+        int position = entry >= 0 ? index.getInt(entry * INDEX_ENTRY + 4) : 0;
+        
+        int length;
+        while ((length = recordLength(position)) >= 0) {
+            position += RECORD_HEADER + length;
+            records++;
+        }
+        
+        // Zero stale entries and a torn tail so later appends can't be confused with them
+        for (int i = entry + 1; i < entries; i++) {
+            index.putLong(i * INDEX_ENTRY, 0);
+        }
+        if (position + RECORD_HEADER <= log.capacity() && log.getInt(position) != 0) {
+            for (int i = position; i < log.capacity(); i++) {
+                log.put(i, (byte) 0);
+            }
+        }
+        
+        indexEntries = entry + 1;
+        lastIndexedPosition = entry >= 0 ? index.getInt(entry * INDEX_ENTRY + 4) : 0;
+        count = records;
+        size = position;
+    }
+    
+    // Returns false when the record doesn't fit, so the caller can roll
+    boolean append(byte[] frame) {
+        int position = size;
+        if (position + RECORD_HEADER + frame.length > log.capacity()) {
+            return false;
+        }
+        
+        crc.reset();
+        crc.update(frame, 0, frame.length);
+        log.put(position + RECORD_HEADER, frame);
+        log.putInt(position + 4, (int) crc.getValue());
+        log.putInt(position, frame.length);
+        
+        if (position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+            int entry = indexEntries;
+            index.putInt(entry * INDEX_ENTRY, count);
+            index.putInt(entry * INDEX_ENTRY + 4, position);
+            lastIndexedPosition = position;
+            indexEntries = entry + 1;
+        }
+        
+        lastAppendMillis = System.currentTimeMillis();
+        count++;
+        size = position + RECORD_HEADER + frame.length;
+        return true;
+    }
+    
+    // Adds up to max decoded messages starting at the absolute offset
+    void read(long offset, int max, List<ChatMessage> into) throws IOException {
+        int end = size;
+        int records = count;
+        int target = (int) (offset - baseOffset);
+        
+        // Nearest index entry at or before the target
+        int relative = 0;
+        int position = 0;
+        int low = 0;
+        int high = indexEntries - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (index.getInt(mid * INDEX_ENTRY) <= target) {
+                relative = index.getInt(mid * INDEX_ENTRY);
+                position = index.getInt(mid * INDEX_ENTRY + 4);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        
+        ByteBuffer view = log.duplicate();
+        int added = 0;
+        while (relative < records && position < end && added < max) {
+            int length = view.getInt(position);
+            if (relative >= target) {
+                ByteBuffer frame = view.duplicate();
+                frame.limit(position + RECORD_HEADER + length).position(position + RECORD_HEADER);
+                ChatMessage message = FrameCodec.BINARY.tryDecode(frame);
+                if (message == null) {
+                    throw new IOException("Truncated record at " + logFile + ":" + position);
+                }
+                into.add(message);
+                added++;
+            }
+            position += RECORD_HEADER + length;
+            relative++;
+        }
+    }
+    
+    void force() {
+        log.force();
+        index.force();
+    }
+    
+    void close() throws IOException {
+        logChannel.close();
+        indexChannel.close();
+    }
+    
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(logFile);
+        Files.deleteIfExists(indexFile);
+    }
+    
+    // Frame length of a valid record at position, or -1 at the end or on corruption
+    private int recordLength(int position) {
+        if (position + RECORD_HEADER > log.capacity()) {
+            return -1;
+        }
+        int length = log.getInt(position);
+        if (length <= 0 || position + RECORD_HEADER + length > log.capacity()) {
+            return -1;
+        }
+        
+        byte[] frame = new byte[length];
+        log.get(position + RECORD_HEADER, frame);
+        crc.reset();
+        crc.update(frame, 0, frame.length);
+        return (int) crc.getValue() == log.getInt(position + 4) ? length : -1;
+    }
+}
@@ -3,7 +3,12 @@
 
 package com.michaelsemera.nexus  ;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 
 // ==================== MessageType Enum ====================
 enum MessageType {
@@ -29,18 +34,38 @@ enum MessageType {
     
     // System
     ERROR,              // Error message
-    SERVER_MESSAGE      // Server announcement
+    SERVER_MESSAGE,     // Server announcement
+    
+    // Protocol (new constants go last: ordinals are on the wire)
+    HELLO,              // Wire protocol version negotiation
+    PRESENCE,           // Versioned roster snapshot or join/leave delta (protocol 2+)
+    SEARCH,             // History search query (protocol 2+)
+    SEARCH_RESULT,      // One search hit, then a closing summary from SERVER
+    
+    // Rooms (protocol 2+)
+    JOIN_ROOM,          // Subscribe to a room named in the content
+    LEAVE_ROOM,         // Unsubscribe from a room named in the content
+    ROOM_CHAT,          // Chat message to the room named in the room field
+    
+    // Resume (servers that offer a history id)
+    RESUME,             // Before LOGIN: the previous history id, and the last lobby seq received
+    HISTORY_GAP         // To a resumed client: how many missed messages can't be replayed; seq is the last of them
 }
 
 // ==================== ChatMessage Class ====================
 class ChatMessage implements Serializable {
     
     private static final long serialVersionUID = 1L;
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
     
     private MessageType type;
     private String sender;
     private String content;
     private String timestamp;
+    private long epochMillis;
+    private String room;            // null for the lobby
+    private long seq;               // Position in the lobby or room history, 0 if not recorded there
     
     public ChatMessage(MessageType type, String sender, String content, String timestamp) {
         this.type = type;
@@ -49,6 +74,14 @@ class ChatMessage implements Serializable {
         this.timestamp = timestamp;
     }
     
+    // Timestamp text is only formatted if someone asks for it
+    public ChatMessage(MessageType type, String sender, String content, long epochMillis) {
+        this.type = type;
+        this.sender = sender;
+        this.content = content;
+        this.epochMillis = epochMillis;
+    }
+    
     // Getters
     public MessageType getType() {
         return type;
@@ -63,9 +96,24 @@ class ChatMessage implements Serializable {
     }
     
     public String getTimestamp() {
+        if (timestamp == null) {
+            timestamp = epochMillis != 0 ? TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(epochMillis)) : "";
+        }
         return timestamp;
     }
     
+    public long getEpochMillis() {
+        return epochMillis;
+    }
+    
+    public String getRoom() {
+        return room;
+    }
+    
+    public long getSeq() {
+        return seq;
+    }
+    
     // Setters
     public void setType(MessageType type) {
         this.type = type;
@@ -83,9 +131,28 @@ class ChatMessage implements Serializable {
         this.timestamp = timestamp;
     }
     
+    public void setEpochMillis(long epochMillis) {
+        this.epochMillis = epochMillis;
+        this.timestamp = null;
+    }
+    
+    public void setRoom(String room) {
+        this.room = room;
+    }
+    
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+    
+    // Version 1 peers only read the text timestamp, so make sure it is filled in
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getTimestamp();
+        out.defaultWriteObject();
+    }
+    
     @Override
     public String toString() {
         return String.format("[%s] %s (%s): %s", 
-            timestamp, sender, type, content);
+            getTimestamp(), sender, type, content);
     }
 }
\ No newline at end of file
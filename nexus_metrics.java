@@ -0,0 +1,359 @@
+// Nexus - ServerMetrics.java
+// Created by Michael Semera
+// Counters and latency histograms for ChatServer, exported over JMX and HTTP
+
+package com.michaelsemera.nexus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// ==================== ServerMetrics Class ====================
+// Everything on the message path is a LongAdder increment or a histogram
+// record, both safe from any thread without a shared lock. Gauges such as
+// connected clients and history size aren't tracked at all; they are read
+// from the server through a Source when someone asks.
+//
+// Latencies are recorded in microseconds and kept for the life of the
+// server, so percentiles describe everything since startup. A clock read
+// costs about as much as queuing a message for ten recipients, so only a
+// random one in eight broadcasts is timed.
+final class ServerMetrics {
+    
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final int FAN_OUT_SAMPLE = 8;
+    private static final long NOT_SAMPLED = Long.MIN_VALUE;
+    
+    // Live values the server reports on demand
+    interface Source {
+        int connectedClients();
+        int openConnections();
+        int historySize();
+        int rooms();
+        boolean messageLogFailed();
+        Map<String, Integer> outboundQueueDepths();
+    }
+    
+    // What JMX clients such as jconsole see, under com.michaelsemera.nexus:type=ChatServer
+    public interface ChatServerMXBean {
+        int getConnectedClients();
+        int getOpenConnections();
+        int getHistorySize();
+        int getRooms();
+        boolean isMessageLogFailed();
+        Map<String, Long> getMessagesIn();
+        Map<String, Long> getMessagesOut();
+        long getBytesIn();
+        long getBytesOut();
+        long getSocketWrites();
+        Map<String, Integer> getOutboundQueueDepths();
+        Map<String, Long> getFanOutMicros();
+        Map<String, Long> getAuthMicros();
+    }
+    
+    private final Source source;
+    private final WriteStats writeStats;
+    private final LongAdder[] messagesIn = new LongAdder[TYPES.length];
+    private final LongAdder[] messagesOut = new LongAdder[TYPES.length];
+    private final LongAdder bytesIn = new LongAdder();
+    private final LatencyHistogram fanOutMicros = new LatencyHistogram();
+    private final LatencyHistogram authMicros = new LatencyHistogram();
+    private ObjectName jmxName;
+    private HttpServer http;
+    private ExecutorService httpExecutor;
+    
+    ServerMetrics(Source source, WriteStats writeStats) {
+        this.source = source;
+        this.writeStats = writeStats;
+        for (int i = 0; i < TYPES.length; i++) {
+            messagesIn[i] = new LongAdder();
+            messagesOut[i] = new LongAdder();
+        }
+    }
+    
+    // ---------- recording ----------
+    
+    void messageReceived(MessageType type) {
+        messagesIn[type.ordinal()].increment();
+    }
+    
+    // Counted once per recipient, when the message is queued for it
+    void messageQueued(MessageType type) {
+        messagesOut[type.ordinal()].increment();
+    }
+    
+    // A broadcast adds all its recipients at once, after the loop
+    void messagesQueued(MessageType type, int recipients) {
+        if (recipients > 0) {
+            messagesOut[type.ordinal()].add(recipients);
+        }
+    }
+    
+    void bytesReceived(long bytes) {
+        bytesIn.add(bytes);
+    }
+    
+    // Pass the result to fanOutEnd once every recipient has the message
+    long fanOutStart() {
+        return ThreadLocalRandom.current().nextInt(FAN_OUT_SAMPLE) == 0 ? System.nanoTime() : NOT_SAMPLED;
+    }
+    
+    void fanOutEnd(long start) {
+        if (start != NOT_SAMPLED) {
+            fanOutMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+    
+    void authenticated(long nanos) {
+        authMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+    
+    // Wraps a socket stream so every read that reaches it is counted
+    InputStream counting(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (read > 0) {
+                    bytesIn.add(read);
+                }
+                return read;
+            }
+        };
+    }
+    
+    // ---------- export ----------
+    
+    // Registers the MXBean; the port keeps several servers in one JVM apart
+    void registerJmx(int port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            jmxName = new ObjectName("com.michaelsemera.nexus:type=ChatServer,port=" + port);
+            server.registerMBean(new Jmx(), jmxName);
+        } catch (JMException e) {
+            jmxName = null;
+            System.err.println("JMX registration failed: " + e.getMessage());
+        }
+    }
+    
+    // Serves GET /metrics in the Prometheus text format, on the loopback interface only
+    void startHttp(int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16);
+        httpExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "nexus-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        http.setExecutor(httpExecutor);
+        http.createContext("/metrics", this::serve);
+        http.start();
+    }
+    
+    void close() {
+        if (http != null) {
+            http.stop(0);
+            httpExecutor.shutdownNow();
+        }
+        if (jmxName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+            } catch (JMException e) {
+                // Already gone
+            }
+        }
+    }
+    
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    // Per-user queue depths would be one series per user, so only the total and
+    // the deepest queue are exported here; JMX has the full map
+    String toPrometheus() {
+        StringBuilder text = new StringBuilder(4096);
+        gauge(text, "nexus_connected_clients", "Logged-in users", source.connectedClients());
+        gauge(text, "nexus_open_connections", "Admitted connections, logged in or not", source.openConnections());
+        gauge(text, "nexus_history_messages", "Messages in the lobby history", source.historySize());
+        gauge(text, "nexus_rooms", "Rooms created since startup", source.rooms());
+        gauge(text, "nexus_message_log_failed", "1 once a message log write has failed and logging stopped",
+            source.messageLogFailed() ? 1 : 0);
+        
+        int queued = 0;
+        int deepest = 0;
+        for (int depth : source.outboundQueueDepths().values()) {
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+        }
+        gauge(text, "nexus_outbound_queued", "Messages waiting in all outbound queues", queued);
+        gauge(text, "nexus_outbound_queue_depth_max", "Deepest outbound queue", deepest);
+        
+        byType(text, "nexus_messages_received_total", "Messages received from clients", messagesIn);
+        byType(text, "nexus_messages_sent_total", "Messages queued for clients, once per recipient", messagesOut);
+        counter(text, "nexus_bytes_received_total", "Bytes read from client sockets", bytesIn.sum());
+        counter(text, "nexus_bytes_sent_total", "Bytes written to client sockets", writeStats.getBytes());
+        counter(text, "nexus_socket_writes_total", "Socket writes, each carrying one or more frames", writeStats.getWrites());
+        
+        summary(text, "nexus_fanout_seconds", "Time to queue one broadcast for every recipient, sampled 1 in 8", fanOutMicros);
+        summary(text, "nexus_auth_seconds", "Time from credentials received to login result", authMicros);
+        return text.toString();
+    }
+    
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+    
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+    
+    private static void byType(StringBuilder text, String name, String help, LongAdder[] counts) {
+        header(text, name, help, "counter");
+        for (MessageType type : TYPES) {
+            text.append(name).append("{type=\"").append(type).append("\"} ").append(counts[type.ordinal()].sum()).append('\n');
+        }
+    }
+    
+    private static void summary(StringBuilder text, String name, String help, LatencyHistogram micros) {
+        header(text, name, help, "summary");
+        for (String quantile : new String[] {"0.5", "0.99", "0.999"}) {
+            long value = micros.valueAtPercentile(Double.parseDouble(quantile) * 100);
+            text.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(value / 1e6).append('\n');
+        }
+        text.append(name).append("_sum ").append(micros.getSum() / 1e6).append('\n');
+        text.append(name).append("_count ").append(micros.getCount()).append('\n');
+    }
+    
+    private static Map<String, Long> counts(LongAdder[] counts) {
+        Map<String, Long> byType = new LinkedHashMap<>();
+        for (MessageType type : TYPES) {
+            byType.put(type.name(), counts[type.ordinal()].sum());
+        }
+        return byType;
+    }
+    
+    private static Map<String, Long> percentiles(LatencyHistogram micros) {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        summary.put("count", micros.getCount());
+        summary.put("p50", micros.valueAtPercentile(50));
+        summary.put("p99", micros.valueAtPercentile(99));
+        summary.put("p999", micros.valueAtPercentile(99.9));
+        summary.put("max", micros.getMax());
+        return summary;
+    }
+    
+    // ==================== Jmx ====================
+    private final class Jmx implements ChatServerMXBean {
+        
+        @Override
+        public int getConnectedClients() {
+            return source.connectedClients();
+        }
+        
+        @Override
+        public int getOpenConnections() {
+            return source.openConnections();
+        }
+        
+        @Override
+        public int getHistorySize() {
+            return source.historySize();
+        }
+        
+        @Override
+        public int getRooms() {
+            return source.rooms();
+        }
+        
+        @Override
+        public boolean isMessageLogFailed() {
+            return source.messageLogFailed();
+        }
+        
+        @Override
+        public Map<String, Long> getMessagesIn() {
+            return counts(messagesIn);
+        }
+        
+        @Override
+        public Map<String, Long> getMessagesOut() {
+            return counts(messagesOut);
+        }
+        
+        @Override
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+        
+        @Override
+        public long getBytesOut() {
+            return writeStats.getBytes();
+        }
+        
+        @Override
+        public long getSocketWrites() {
+            return writeStats.getWrites();
+        }
+        
+        @Override
+        public Map<String, Integer> getOutboundQueueDepths() {
+            return source.outboundQueueDepths();
+        }
+        
+        @Override
+        public Map<String, Long> getFanOutMicros() {
+            return percentiles(fanOutMicros);
+        }
+        
+        @Override
+        public Map<String, Long> getAuthMicros() {
+            return percentiles(authMicros);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+// Nexus - OutboundQueue.java, SlowConsumerPolicy.java, FlushPolicy.java and WriteStats.java
+// Created by Michael Semera
+// Bounded per-client send queues with backpressure for slow consumers
+
+package com.michaelsemera.nexus;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// ==================== SlowConsumerPolicy Class ====================
+// Escalates as a client's queue grows: first typing indicators are dropped,
+// then replaceable updates (user list, typing) overwrite queued copies
+// instead of piling up, and past the high-water mark the client is cut off.
+final class SlowConsumerPolicy {
+    
+    private final int dropTypingDepth;
+    private final int coalesceDepth;
+    private final int highWaterMark;
+    
+    SlowConsumerPolicy(int dropTypingDepth, int coalesceDepth, int highWaterMark) {
+        if (dropTypingDepth > coalesceDepth || coalesceDepth > highWaterMark) {
+            throw new IllegalArgumentException(
+                "Expected drop-typing <= coalesce <= high-water, got " + describe(dropTypingDepth, coalesceDepth, highWaterMark));
+        }
+        this.dropTypingDepth = dropTypingDepth;
+        this.coalesceDepth = coalesceDepth;
+        this.highWaterMark = highWaterMark;
+    }
+    
+    int getDropTypingDepth() {
+        return dropTypingDepth;
+    }
+    
+    int getCoalesceDepth() {
+        return coalesceDepth;
+    }
+    
+    int getHighWaterMark() {
+        return highWaterMark;
+    }
+    
+    // Messages with the same key supersede each other; null means never coalesce
+    static String coalesceKey(EncodedMessage message) {
+        switch (message.getType()) {
+            case USER_LIST:
+                return "USER_LIST";
+            case TYPING:
+                // Each batched frame lists everyone typing in its room
+                return "TYPING:" + message.getMessage().getRoom();
+            default:
+                return null;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return describe(dropTypingDepth, coalesceDepth, highWaterMark);
+    }
+    
+    private static String describe(int dropTyping, int coalesce, int highWater) {
+        return String.format("dropTyping=%d, coalesce=%d, highWater=%d", dropTyping, coalesce, highWater);
+    }
+}
+
+// ==================== FlushPolicy Class ====================
+// How writers turn queued frames into socket writes. Frames are gathered
+// into one write of up to bufferBytes; a partly full batch goes out as soon
+// as the queue runs dry, or after waiting at most flushDelayMicros for more.
+// bufferBytes 0 writes every frame on its own.
+final class FlushPolicy {
+    
+    private final int bufferBytes;
+    private final int flushDelayMicros;
+    
+    FlushPolicy(int bufferBytes, int flushDelayMicros) {
+        if (bufferBytes < 0 || flushDelayMicros < 0) {
+            throw new IllegalArgumentException("Expected write-buffer-bytes and write-flush-delay-us >= 0, got "
+                + describe(bufferBytes, flushDelayMicros));
+        }
+        this.bufferBytes = bufferBytes;
+        this.flushDelayMicros = flushDelayMicros;
+    }
+    
+    int getBufferBytes() {
+        return bufferBytes;
+    }
+    
+    int getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+    
+    long getFlushDelayNanos() {
+        return flushDelayMicros * 1000L;
+    }
+    
+    @Override
+    public String toString() {
+        return describe(bufferBytes, flushDelayMicros);
+    }
+    
+    private static String describe(int bufferBytes, int flushDelayMicros) {
+        return String.format("buffer=%d, flushDelay=%dus", bufferBytes, flushDelayMicros);
+    }
+}
+
+// ==================== WriteStats Class ====================
+// Server-wide counts of frames sent and the socket writes that carried
+// them; frames per write shows how well writes are being batched.
+final class WriteStats {
+    
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    
+    void addFrames(int count) {
+        frames.add(count);
+    }
+    
+    void addWrite(long written) {
+        writes.increment();
+        bytes.add(written);
+    }
+    
+    long getFrames() {
+        return frames.sum();
+    }
+    
+    long getWrites() {
+        return writes.sum();
+    }
+    
+    long getBytes() {
+        return bytes.sum();
+    }
+    
+    // Wraps a socket stream so every write that reaches it is counted
+    OutputStream counting(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                addWrite(len);
+            }
+        };
+    }
+    
+    @Override
+    public String toString() {
+        long writeCount = getWrites();
+        return String.format("frames=%d, writes=%d, bytes=%d, frames/write=%.2f",
+            getFrames(), writeCount, getBytes(), writeCount > 0 ? (double) getFrames() / writeCount : 0.0);
+    }
+}
+
+// ==================== OutboundQueue Class ====================
+// Producers (any thread) offer messages; a single writer drains them.
+// Each entry remembers the codec in force when it was queued, so a
+// protocol switch never re-encodes messages that were already accepted.
+final class OutboundQueue {
+    
+    enum Offer {
+        QUEUED,         // Accepted
+        COALESCED,      // Replaced an older queued copy
+        DROPPED,        // Discarded by policy
+        OVERFLOW,       // High-water mark crossed; the consumer should be disconnected
+        CLOSED          // Queue no longer accepts messages
+    }
+    
+    static final class Entry {
+        private EncodedMessage message;
+        private final MessageCodec codec;
+        private final String coalesceKey;
+        
+        private Entry(EncodedMessage message, MessageCodec codec, String coalesceKey) {
+            this.message = message;
+            this.codec = codec;
+            this.coalesceKey = coalesceKey;
+        }
+        
+        EncodedMessage getMessage() {
+            return message;
+        }
+        
+        // The shared frame bytes; the codec sees each one for its stats
+        byte[] frame() throws IOException {
+            byte[] frame = message.frameFor(codec);
+            codec.onFrameWritten(frame);
+            return frame;
+        }
+    }
+    
+    private final SlowConsumerPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final Map<String, Entry> coalescable = new HashMap<>();
+    private volatile int depth;
+    private boolean closed;
+    
+    OutboundQueue(SlowConsumerPolicy policy) {
+        this.policy = policy;
+    }
+    
+    Offer offer(EncodedMessage message, MessageCodec codec) {
+        String key = SlowConsumerPolicy.coalesceKey(message);
+        
+        lock.lock();
+        try {
+            if (closed) {
+                return Offer.CLOSED;
+            }
+            
+            int size = entries.size();
+            if (size >= policy.getHighWaterMark()) {
+                return Offer.OVERFLOW;
+            }
+            if (message.getType() == MessageType.TYPING && size >= policy.getDropTypingDepth()) {
+                return Offer.DROPPED;
+            }
+            if (key != null && size >= policy.getCoalesceDepth()) {
+                Entry queued = coalescable.get(key);
+                if (queued != null && queued.codec == codec) {
+                    queued.message = message;
+                    return Offer.COALESCED;
+                }
+            }
+            
+            Entry entry = new Entry(message, codec, key);
+            entries.addLast(entry);
+            if (key != null) {
+                coalescable.put(key, entry);
+            }
+            depth = entries.size();
+            notEmpty.signal();
+            return Offer.QUEUED;
+            
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Non-blocking; null when empty
+    Entry poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Waits at most timeout for an entry; null if none arrived or the queue is closed and drained
+    Entry poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (entries.isEmpty()) {
+                if (closed || remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return removeFirst();
+            
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Blocks until an entry is available; null once closed and drained. close()
+    // signals, so an idle writer sleeps until there is something to do
+    Entry take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (entries.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            return removeFirst();
+            
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Stops accepting messages; already queued ones can still be drained
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Discards everything queued, used when the consumer is being dropped
+    void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            coalescable.clear();
+            depth = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    int depth() {
+        return depth;
+    }
+    
+    private Entry removeFirst() {
+        Entry entry = entries.pollFirst();
+        if (entry != null) {
+            if (entry.coalesceKey != null && coalescable.get(entry.coalesceKey) == entry) {
+                coalescable.remove(entry.coalesceKey);
+            }
+            depth = entries.size();
+        }
+        return entry;
+    }
+}
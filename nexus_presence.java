@@ -0,0 +1,261 @@
+// Nexus - PresenceTracker.java
+// Created by Michael Semera
+// Versioned online roster that publishes joins and leaves as deltas
+
+package com.michaelsemera.nexus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+// ==================== PresenceTracker Class ====================
+// Every join or leave bumps the roster version and is handed to the
+// publisher while the lock is held, so all clients see changes in version
+// order. A client receives the full roster once and then only deltas:
+//
+//   =<version>\n<user>,<user>,...   full roster (snapshot)
+//   +<version>\n<user>              user came online
+//   -<version>\n<user>              user went offline
+//
+// Members are tracked by identity, so a leave from a replaced session
+// never removes the user's newer session. Each room has its own tracker;
+// its messages carry the room name (null for the lobby).
+//
+// In a cluster the lobby roster also lists users online on other nodes.
+// Those changes reach the publisher with a null member.
+final class PresenceTracker<M> {
+    
+    // Called with the tracker's lock held, strictly in version order.
+    // The member is null when the user is on another cluster node.
+    interface Publisher<M> {
+        boolean isConnected(M member);
+        
+        void joined(M member, Change change);
+        
+        void left(M member, Change change);
+    }
+    
+    // The full roster is only built if a snapshot or user list is asked for,
+    // which must happen inside the publisher callback while it is still
+    // current; most changes only ever send a delta
+    static final class Change {
+        private final PresenceTracker<?> tracker;
+        private final long version;
+        private final String user;
+        private final boolean joined;
+        private String roster;
+        
+        private Change(PresenceTracker<?> tracker, long version, String user, boolean joined) {
+            this.tracker = tracker;
+            this.version = version;
+            this.user = user;
+            this.joined = joined;
+        }
+        
+        long getVersion() {
+            return version;
+        }
+        
+        String getUser() {
+            return user;
+        }
+        
+        boolean isJoin() {
+            return joined;
+        }
+        
+        ChatMessage delta() {
+            return presence((joined ? "+" : "-") + version + "\n" + user);
+        }
+        
+        ChatMessage snapshot() {
+            return presence("=" + version + "\n" + roster());
+        }
+        
+        // Full roster for clients that predate PRESENCE
+        ChatMessage userList() {
+            return new ChatMessage(MessageType.USER_LIST, "SERVER", roster(), System.currentTimeMillis());
+        }
+        
+        private String roster() {
+            if (roster == null) {
+                roster = tracker.roster();
+            }
+            return roster;
+        }
+        
+        private ChatMessage presence(String content) {
+            ChatMessage message = new ChatMessage(MessageType.PRESENCE, "SERVER", content, System.currentTimeMillis());
+            message.setRoom(tracker.room);
+            return message;
+        }
+    }
+    
+    private final String room;
+    private final Publisher<M> publisher;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Object> online = new LinkedHashMap<>();      // Member or RemoteMember
+    private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+    private long version;
+    
+    PresenceTracker(String room, Publisher<M> publisher) {
+        this.room = room;
+        this.publisher = publisher;
+    }
+    
+    void join(M member, String user) {
+        submit(() -> {
+            // The session may have closed before its join got the lock
+            if (!publisher.isConnected(member)) {
+                return;
+            }
+            online.put(user, member);
+            publisher.joined(member, nextChange(user, true));
+        });
+    }
+    
+    void leave(M member, String user) {
+        submit(() -> {
+            if (online.remove(user, member)) {
+                publisher.left(member, nextChange(user, false));
+            }
+        });
+    }
+    
+    void joinRemote(String node, String user) {
+        submit(() -> {
+            // A local session for the same name wins over a stale remote entry
+            Object current = online.get(user);
+            if (current == null || current instanceof RemoteMember) {
+                online.put(user, new RemoteMember(node));
+                publisher.joined(null, nextChange(user, true));
+            }
+        });
+    }
+    
+    void leaveRemote(String node, String user) {
+        submit(() -> {
+            if (online.remove(user, new RemoteMember(node))) {
+                publisher.left(null, nextChange(user, false));
+            }
+        });
+    }
+    
+    // Replaces everything known about a node's users with its full roster,
+    // publishing only the differences
+    void syncRemote(String node, Collection<String> users) {
+        submit(() -> {
+            RemoteMember member = new RemoteMember(node);
+            Set<String> current = new HashSet<>(users);
+            List<String> gone = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : online.entrySet()) {
+                if (member.equals(entry.getValue()) && !current.contains(entry.getKey())) {
+                    gone.add(entry.getKey());
+                }
+            }
+            for (String user : gone) {
+                online.remove(user);
+                publisher.left(null, nextChange(user, false));
+            }
+            for (String user : users) {
+                if (!online.containsKey(user)) {
+                    online.put(user, member);
+                    publisher.joined(null, nextChange(user, true));
+                }
+            }
+        });
+    }
+    
+    void leaveAllRemote(String node) {
+        syncRemote(node, List.of());
+    }
+    
+    // Runs in order with roster changes, e.g. to send a consistent snapshot
+    void whileLocked(Runnable task) {
+        submit(task);
+    }
+    
+    // Users with a session on this node
+    List<String> localUsers() {
+        lock.lock();
+        try {
+            List<String> users = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : online.entrySet()) {
+                if (!(entry.getValue() instanceof RemoteMember)) {
+                    users.add(entry.getKey());
+                }
+            }
+            return users;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    long version() {
+        lock.lock();
+        try {
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private Change nextChange(String user, boolean joined) {
+        return new Change(this, ++version, user, joined);
+    }
+    
+    private String roster() {
+        lock.lock();
+        try {
+            return String.join(",", online.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // A publisher may trigger another change on the same thread (e.g. a slow
+    // consumer disconnected mid fan-out); it is queued and published after
+    // the current one instead of interleaving with it
+    private void submit(Runnable update) {
+        lock.lock();
+        try {
+            pending.addLast(update);
+            if (lock.getHoldCount() > 1) {
+                return;
+            }
+            
+            Runnable next;
+            while ((next = pending.pollFirst()) != null) {
+                next.run();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Stands in for a session on another node
+    private static final class RemoteMember {
+        private final String node;
+        
+        RemoteMember(String node) {
+            this.node = node;
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof RemoteMember && ((RemoteMember) other).node.equals(node);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(node);
+        }
+    }
+}
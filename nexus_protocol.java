@@ -0,0 +1,813 @@
+// Nexus - FrameCodec.java, MessageCodec.java, EncodedMessage.java, CompressionStats.java and the wire codecs
+// Created by Michael Semera
+// Length-prefixed framing shared by ChatServer and ChatClient
+
+package com.michaelsemera.nexus;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// ==================== MessageCodec Interface ====================
+// One wire format. Blocking peers use readFrame/writeFrame, NIO peers
+// use tryDecode on a read buffer; both share encodeFrame.
+interface MessageCodec {
+    
+    int version();
+    
+    byte[] encodeFrame(ChatMessage message) throws IOException;
+    
+    ChatMessage readFrame(DataInputStream in) throws IOException;
+    
+    // Decodes the next frame from a buffer in read mode, or returns null
+    // (leaving the position untouched) when the frame is not complete yet
+    ChatMessage tryDecode(ByteBuffer buffer) throws IOException;
+    
+    // Total size of the frame at the buffer position, or -1 if its header is incomplete
+    int pendingFrameSize(ByteBuffer buffer) throws IOException;
+    
+    default void writeFrame(OutputStream out, ChatMessage message) throws IOException {
+        byte[] frame = encodeFrame(message);
+        out.write(frame);
+        out.flush();
+        onFrameWritten(frame);
+    }
+    
+    // Called with every frame written through this codec, for per-connection stats
+    default void onFrameWritten(byte[] frame) {
+    }
+}
+
+// ==================== FrameCodec Class ====================
+// Protocol versions and the handshake that picks one per connection.
+//
+// A client's first four bytes say how it frames messages. Clients of the
+// original release open an ObjectOutputStream right away, so they start
+// with its stream header and stay on that one stream (version 0); the
+// server answers with its own header. Framed clients send FRAMED_MAGIC and
+// start on version 1. The server appends the versions it speaks to its
+// AUTH_REQUEST text; a client that understands a newer one answers with
+// HELLO, the server confirms with HELLO, and both sides switch codecs
+// before LOGIN. Clients that never send HELLO stay on version 1.
+// Version 3 is version 2 with compressed frames; a server started without
+// compression leaves it out of its offer.
+final class FrameCodec {
+    
+    static final int LEGACY_VERSION = 0;
+    static final int SERIALIZED_VERSION = 1;
+    static final int BINARY_VERSION = 2;
+    static final int COMPRESSED_VERSION = 3;
+    static final int MAX_FRAME_SIZE = 1024 * 1024;
+    
+    static final int FRAMED_MAGIC = 0x4E584652;         // "NXFR"
+    static final int LEGACY_MAGIC = 0xACED0005;         // Java serialization stream header
+    
+    static final MessageCodec SERIALIZED = new SerializedCodec();
+    static final MessageCodec BINARY = new BinaryCodec();
+    static final MessageCodec COMPRESSED = new CompressedCodec(CompressedCodec.DEFAULT_MIN_BYTES, null);
+    
+    private static final String PROTOCOL_OFFER = "\nprotocols=";
+    private static final String HISTORY_OFFER = "\nhistory=";
+    
+    private FrameCodec() {
+    }
+    
+    // Server side: the codec a connection starts on, from the client's first four bytes
+    static MessageCodec forOpening(int magic) throws IOException {
+        if (magic == FRAMED_MAGIC) {
+            return SERIALIZED;
+        }
+        if (magic == LEGACY_MAGIC) {
+            return new LegacyStreamCodec();
+        }
+        throw new StreamCorruptedException(String.format("Unknown protocol opening: %08x", magic));
+    }
+    
+    // A magic as opening bytes: framed clients send FRAMED_MAGIC before anything
+    // else, and the server answers a legacy client's header with LEGACY_MAGIC
+    static byte[] opening(int magic) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(magic).array();
+    }
+    
+    static MessageCodec forVersion(int version) {
+        if (version >= COMPRESSED_VERSION) {
+            return COMPRESSED;
+        }
+        return version >= BINARY_VERSION ? BINARY : SERIALIZED;
+    }
+    
+    // Server side: advertise supported versions, up to maxVersion, in the AUTH_REQUEST text
+    static String withProtocolOffer(String text, int maxVersion) {
+        StringBuilder offer = new StringBuilder(text).append(PROTOCOL_OFFER).append(SERIALIZED_VERSION);
+        for (int version = SERIALIZED_VERSION + 1; version <= maxVersion; version++) {
+            offer.append(',').append(version);
+        }
+        return offer.toString();
+    }
+    
+    // Server side: name the histories that message seqs count through, the
+    // lobby's and the server run's (for rooms), as "<lobby>.<run>". Goes before
+    // the protocol offer, which older clients read to the end of the text.
+    static String withHistoryOffer(String text, String lobbyHistory, String run) {
+        return text + HISTORY_OFFER + lobbyHistory + "." + run;
+    }
+    
+    // The lobby part of a history id; empty if the id is malformed
+    static String lobbyHistoryOf(String historyId) {
+        int split = historyId.lastIndexOf('.');
+        return split >= 0 ? historyId.substring(0, split) : "";
+    }
+    
+    // The server run part of a history id, which room seqs count through
+    static String runOf(String historyId) {
+        int split = historyId.lastIndexOf('.');
+        return split >= 0 ? historyId.substring(split + 1) : "";
+    }
+    
+    // Client side: the history id in an AUTH_REQUEST, or null from servers that can't resume
+    static String offeredHistory(ChatMessage authRequest) {
+        String content = authRequest.getContent();
+        int offer = content == null ? -1 : content.indexOf(HISTORY_OFFER);
+        if (offer < 0) {
+            return null;
+        }
+        int start = offer + HISTORY_OFFER.length();
+        int end = content.indexOf('\n', start);
+        return content.substring(start, end >= 0 ? end : content.length());
+    }
+    
+    // Client side: highest version offered by the server that we also speak
+    static int negotiableVersion(ChatMessage authRequest) {
+        String content = authRequest.getContent();
+        int offer = content == null ? -1 : content.indexOf(PROTOCOL_OFFER);
+        if (offer < 0) {
+            return SERIALIZED_VERSION;
+        }
+        
+        int best = SERIALIZED_VERSION;
+        for (String version : content.substring(offer + PROTOCOL_OFFER.length()).split(",")) {
+            try {
+                int candidate = Integer.parseInt(version.trim());
+                if (candidate <= COMPRESSED_VERSION && candidate > best) {
+                    best = candidate;
+                }
+            } catch (NumberFormatException e) {
+                // Ignore versions we cannot parse
+            }
+        }
+        return best;
+    }
+    
+    // Client side: version the server confirmed in its HELLO
+    static int acceptVersion(ChatMessage hello) {
+        return acceptVersion(hello, COMPRESSED_VERSION);
+    }
+    
+    // Server side: version to confirm for a client's HELLO request
+    static int acceptVersion(ChatMessage hello, int maxVersion) {
+        try {
+            int requested = Integer.parseInt(hello.getContent().trim());
+            return Math.max(SERIALIZED_VERSION, Math.min(requested, maxVersion));
+            
+        } catch (NumberFormatException | NullPointerException e) {
+            return SERIALIZED_VERSION;
+        }
+    }
+    
+    static int checkLength(int length) throws IOException {
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+}
+
+// ==================== SerializedCodec Class ====================
+// Version 1: a 4-byte big-endian length followed by one self-contained
+// serialized ChatMessage.
+final class SerializedCodec implements MessageCodec {
+    
+    private static final int HEADER_SIZE = 4;
+    
+    static final ObjectInputFilter MESSAGE_FILTER = ObjectInputFilter.Config.createFilter(
+        "com.michaelsemera.nexus.*;java.lang.*;!*");
+        
+    @Override
+    public int version() {
+        return FrameCodec.SERIALIZED_VERSION;
+    }
+    
+    @Override
+    public byte[] encodeFrame(ChatMessage message) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(body)) {
+            out.writeObject(message);
+        }
+        
+        byte[] frame = new byte[HEADER_SIZE + body.size()];
+        ByteBuffer.wrap(frame).putInt(body.size());
+        System.arraycopy(body.toByteArray(), 0, frame, HEADER_SIZE, body.size());
+        return frame;
+    }
+    
+    @Override
+    public ChatMessage readFrame(DataInputStream in) throws IOException {
+        int length = FrameCodec.checkLength(in.readInt());
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decodeBody(body, 0, length);
+    }
+    
+    @Override
+    public ChatMessage tryDecode(ByteBuffer buffer) throws IOException {
+        int frameSize = pendingFrameSize(buffer);
+        if (frameSize < 0 || buffer.remaining() < frameSize) {
+            return null;
+        }
+        
+        int start = buffer.position();
+        buffer.position(start + frameSize);
+        return decodeBody(buffer.array(), buffer.arrayOffset() + start + HEADER_SIZE, frameSize - HEADER_SIZE);
+    }
+    
+    @Override
+    public int pendingFrameSize(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return -1;
+        }
+        return HEADER_SIZE + FrameCodec.checkLength(buffer.getInt(buffer.position()));
+    }
+    
+    private ChatMessage decodeBody(byte[] body, int offset, int length) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body, offset, length))) {
+            in.setObjectInputFilter(MESSAGE_FILTER);
+            return (ChatMessage) in.readObject();
+            
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new StreamCorruptedException("Invalid message format: " + e.getMessage());
+        }
+    }
+}
+
+// ==================== LegacyStreamCodec Class ====================
+// Version 0: the original release's wire format, one ObjectOutputStream per
+// direction for the whole connection and no framing. Every message written
+// starts with a reset, so it is self-contained and shared like any other
+// frame. The client never resets, so its messages refer back to earlier
+// ones: each connection needs its own instance, read only through readFrame
+// by a single thread. Those clients never send HELLO, and are only sent the
+// message types their release knew.
+final class LegacyStreamCodec implements MessageCodec {
+    
+    private ObjectInputStream stream;
+    
+    @Override
+    public int version() {
+        return FrameCodec.LEGACY_VERSION;
+    }
+    
+    @Override
+    public byte[] encodeFrame(ChatMessage message) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(frame) {
+            @Override
+            protected void writeStreamHeader() {
+                // Sent once, when the connection opened
+            }
+        }) {
+            out.reset();
+            out.writeObject(message);
+        }
+        return frame.toByteArray();
+    }
+    
+    @Override
+    public ChatMessage readFrame(DataInputStream in) throws IOException {
+        if (stream == null) {
+            stream = new ObjectInputStream(in) {
+                @Override
+                protected void readStreamHeader() {
+                    // Already read; it picked this codec
+                }
+            };
+            stream.setObjectInputFilter(SerializedCodec.MESSAGE_FILTER);
+        }
+        
+        try {
+            return (ChatMessage) stream.readObject();
+            
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new StreamCorruptedException("Invalid message format: " + e.getMessage());
+        }
+    }
+    
+    // A serialization stream has no boundaries to find in a buffer
+    @Override
+    public ChatMessage tryDecode(ByteBuffer buffer) {
+        throw new UnsupportedOperationException("Legacy streams are only read with readFrame");
+    }
+    
+    @Override
+    public int pendingFrameSize(ByteBuffer buffer) {
+        throw new UnsupportedOperationException("Legacy streams are only read with readFrame");
+    }
+}
+
+// ==================== BinaryCodec Class ====================
+// Version 2 frame layout:
+//
+//   varint   body length
+//   byte     MessageType ordinal
+//   byte     flags, one bit per optional field that follows
+//   int64    epoch millis
+//   string   sender
+//   string   content
+//   string   room          only if FLAG_ROOM
+//   int64    seq           only if FLAG_SEQ
+//
+// Strings are a varint of (UTF-8 byte count + 1) followed by the bytes;
+// 0 encodes null. Decoders ignore anything after the fields they know, so
+// older version 2 peers read frames with a seq as if it weren't there.
+class BinaryCodec implements MessageCodec {
+    
+    static final MessageType[] TYPES = MessageType.values();
+    private static final int FIXED_BODY_SIZE = 1 + 1 + 8;
+    private static final int FLAG_ROOM = 0x01;
+    private static final int FLAG_SEQ = 0x02;
+    
+    @Override
+    public int version() {
+        return FrameCodec.BINARY_VERSION;
+    }
+    
+    @Override
+    public byte[] encodeFrame(ChatMessage message) {
+        byte[] sender = utf8(message.getSender());
+        byte[] content = utf8(message.getContent());
+        byte[] room = utf8(message.getRoom());
+        long seq = message.getSeq();
+        int flags = (room != null ? FLAG_ROOM : 0) | (seq != 0 ? FLAG_SEQ : 0);
+        int bodyLength = FIXED_BODY_SIZE + stringSize(sender) + stringSize(content) + (room != null ? stringSize(room) : 0)
+            + (seq != 0 ? Long.BYTES : 0);
+        
+        ByteBuffer frame = ByteBuffer.allocate(varintSize(bodyLength) + bodyLength);
+        putVarint(frame, bodyLength);
+        frame.put((byte) message.getType().ordinal());
+        frame.put((byte) flags);
+        frame.putLong(message.getEpochMillis());
+        putString(frame, sender);
+        putString(frame, content);
+        if (room != null) {
+            putString(frame, room);
+        }
+        if (seq != 0) {
+            frame.putLong(seq);
+        }
+        return frame.array();
+    }
+    
+    @Override
+    public ChatMessage readFrame(DataInputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift >= 28) {
+                throw new StreamCorruptedException("Malformed frame length");
+            }
+        }
+        
+        byte[] body = new byte[FrameCodec.checkLength(length)];
+        in.readFully(body);
+        return decodeBody(ByteBuffer.wrap(body));
+    }
+    
+    @Override
+    public ChatMessage tryDecode(ByteBuffer buffer) throws IOException {
+        int frameSize = pendingFrameSize(buffer);
+        if (frameSize < 0 || buffer.remaining() < frameSize) {
+            return null;
+        }
+        
+        int start = buffer.position();
+        int headerSize = frameSize - getVarint(buffer, start);
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + headerSize).limit(start + frameSize);
+        buffer.position(start + frameSize);
+        return decodeBody(body);
+    }
+    
+    @Override
+    public int pendingFrameSize(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int length = 0;
+        
+        for (int i = 0; i < 5; i++) {
+            if (start + i >= buffer.limit()) {
+                return -1;
+            }
+            int b = buffer.get(start + i) & 0xFF;
+            length |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return i + 1 + FrameCodec.checkLength(length);
+            }
+        }
+        throw new StreamCorruptedException("Malformed frame length");
+    }
+    
+    // Everything after the length prefix
+    ChatMessage decodeBody(ByteBuffer body) throws IOException {
+        try {
+            int ordinal = body.get() & 0xFF;
+            if (ordinal >= TYPES.length) {
+                throw new StreamCorruptedException("Unknown message type: " + ordinal);
+            }
+            int flags = body.get();
+            long epochMillis = body.getLong();
+            String sender = getString(body);
+            String content = getString(body);
+            
+            ChatMessage message = new ChatMessage(TYPES[ordinal], sender, content, epochMillis);
+            if ((flags & FLAG_ROOM) != 0) {
+                message.setRoom(getString(body));
+            }
+            if ((flags & FLAG_SEQ) != 0) {
+                message.setSeq(body.getLong());
+            }
+            return message;
+            
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new StreamCorruptedException("Truncated frame");
+        }
+    }
+    
+    // ---------- varint and string helpers ----------
+    
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+    
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+    
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = buffer.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+    
+    // Absolute read: returns the decoded value without moving the position
+    private static int getVarint(ByteBuffer buffer, int index) {
+        return getVarint(buffer.duplicate().position(index));
+    }
+    
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static int stringSize(byte[] bytes) {
+        int length = bytes == null ? 0 : bytes.length + 1;
+        return varintSize(length) + (bytes == null ? 0 : bytes.length);
+    }
+    
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            putVarint(buffer, 0);
+            return;
+        }
+        putVarint(buffer, bytes.length + 1);
+        buffer.put(bytes);
+    }
+    
+    private static String getString(ByteBuffer buffer) {
+        int length = getVarint(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+}
+
+// ==================== CompressedCodec Class ====================
+// Version 3: version 2 framing, but a body of at least minBytes is deflated
+// against a preset dictionary when that makes it smaller:
+//
+//   varint   body length
+//   byte     MessageType ordinal | 0x80
+//   varint   length of the rest of the version 2 body
+//   bytes    raw deflate of that rest (flags, millis, strings)
+//
+// Each frame is compressed on its own, with no context carried between
+// frames, so one compressed broadcast is still shared by every recipient.
+// The dictionary stands in for that missing context on short messages.
+//
+// FrameCodec.COMPRESSED is a shared instance; a peer that wants
+// per-connection numbers creates its own with a CompressionStats.
+final class CompressedCodec extends BinaryCodec {
+    
+    static final int DEFAULT_MIN_BYTES = 256;
+    private static final int COMPRESSED_FLAG = 0x80;
+    
+    // Text that turns up in most chat traffic; later bytes are cheapest to reference.
+    // Both ends must hold the same bytes, so changing them needs a new protocol version.
+    private static final byte[] DICTIONARY = (
+        "https://www. .com .org .io the and that this with have you for not are was but what when "
+        + "can will just like about there from they would know think would should could really "
+        + "Please authenticate Login successful has left the chat has joined the chat "
+        + "typing stopped SERVER admin ").getBytes(StandardCharsets.UTF_8);
+        
+    // Deflate and inflate keep native buffers, so each thread reuses its own
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    
+    private final int minBytes;
+    private final CompressionStats stats;
+    
+    CompressedCodec(int minBytes, CompressionStats stats) {
+        this.minBytes = minBytes;
+        this.stats = stats;
+    }
+    
+    @Override
+    public int version() {
+        return FrameCodec.COMPRESSED_VERSION;
+    }
+    
+    @Override
+    public byte[] encodeFrame(ChatMessage message) {
+        byte[] frame = super.encodeFrame(message);
+        int bodyLength = getVarint(ByteBuffer.wrap(frame));
+        int headerSize = frame.length - bodyLength;
+        if (bodyLength < minBytes) {
+            return frame;
+        }
+        
+        // Everything after the type byte is compressed
+        int restOffset = headerSize + 1;
+        int restLength = frame.length - restOffset;
+        long startNanos = System.nanoTime();
+        Deflater deflater = DEFLATER.get();
+        byte[] compressed = new byte[restLength];
+        int compressedLength = 0;
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(frame, restOffset, restLength);
+            deflater.finish();
+            while (!deflater.finished() && compressedLength < restLength) {
+                compressedLength += deflater.deflate(compressed, compressedLength, restLength - compressedLength);
+            }
+            if (!deflater.finished()) {
+                return frame;           // Didn't fit in the original size, so not worth it
+            }
+        } finally {
+            deflater.reset();
+            if (stats != null) {
+                stats.recordDeflated(System.nanoTime() - startNanos);
+            }
+        }
+        
+        int newBodyLength = 1 + varintSize(restLength) + compressedLength;
+        if (newBodyLength >= bodyLength) {
+            return frame;
+        }
+        ByteBuffer smaller = ByteBuffer.allocate(varintSize(newBodyLength) + newBodyLength);
+        putVarint(smaller, newBodyLength);
+        smaller.put((byte) (frame[headerSize] | COMPRESSED_FLAG));
+        putVarint(smaller, restLength);
+        smaller.put(compressed, 0, compressedLength);
+        return smaller.array();
+    }
+    
+    @Override
+    ChatMessage decodeBody(ByteBuffer body) throws IOException {
+        int wireLength = body.remaining();
+        int type = body.get(body.position()) & 0xFF;
+        if ((type & COMPRESSED_FLAG) == 0) {
+            if (stats != null) {
+                stats.recordReceived(wireLength, wireLength, 0);
+            }
+            return super.decodeBody(body);
+        }
+        
+        long startNanos = System.nanoTime();
+        byte[] raw;
+        try {
+            body.get();
+            raw = new byte[1 + FrameCodec.checkLength(getVarint(body))];
+            raw[0] = (byte) (type & ~COMPRESSED_FLAG);
+            inflate(body, raw);
+            
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated frame");
+        }
+        if (stats != null) {
+            stats.recordReceived(raw.length, wireLength, System.nanoTime() - startNanos);
+        }
+        return super.decodeBody(ByteBuffer.wrap(raw));
+    }
+    
+    @Override
+    public void onFrameWritten(byte[] frame) {
+        if (stats != null) {
+            stats.recordSent(rawFrameSize(frame), frame.length);
+        }
+    }
+    
+    // Size the frame would have had as version 2
+    static int rawFrameSize(byte[] frame) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        getVarint(buffer);
+        if ((buffer.get() & COMPRESSED_FLAG) == 0) {
+            return frame.length;
+        }
+        int rawBodyLength = 1 + getVarint(buffer);
+        return varintSize(rawBodyLength) + rawBodyLength;
+    }
+    
+    // Inflates the rest of the body into raw, after its type byte; it must fill raw exactly
+    private static void inflate(ByteBuffer body, byte[] raw) throws IOException {
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setDictionary(DICTIONARY);
+            if (body.hasArray()) {
+                inflater.setInput(body.array(), body.arrayOffset() + body.position(), body.remaining());
+            } else {
+                byte[] compressed = new byte[body.remaining()];
+                body.get(compressed);
+                inflater.setInput(compressed);
+            }
+            int inflated = inflater.inflate(raw, 1, raw.length - 1);
+            if (inflated != raw.length - 1 || !inflater.finished()) {
+                throw new StreamCorruptedException("Compressed frame does not match its length");
+            }
+            
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Invalid compressed frame: " + e.getMessage());
+        } finally {
+            inflater.reset();
+        }
+    }
+}
+
+// ==================== CompressionStats Class ====================
+// One connection's compressed traffic. Sizes are what the frames would have
+// been as version 2 against what actually crossed the wire; CPU is the time
+// spent deflating frames this connection's codec encoded and inflating what
+// the connection sent. A broadcast is deflated once, by the first recipient's
+// codec to need it, so only that connection is charged for it.
+//
+// Stats made with a total also record everything there, so the total covers
+// connections that have since closed.
+final class CompressionStats {
+    
+    private final CompressionStats total;       // Null if this is a total
+    private final LongAdder rawBytesOut = new LongAdder();
+    private final LongAdder wireBytesOut = new LongAdder();
+    private final LongAdder rawBytesIn = new LongAdder();
+    private final LongAdder wireBytesIn = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+    private final LongAdder deflateNanos = new LongAdder();
+    private final LongAdder deflatedFrames = new LongAdder();
+    
+    CompressionStats() {
+        this(null);
+    }
+    
+    CompressionStats(CompressionStats total) {
+        this.total = total;
+    }
+    
+    void recordSent(int rawBytes, int wireBytes) {
+        rawBytesOut.add(rawBytes);
+        wireBytesOut.add(wireBytes);
+        if (total != null) {
+            total.recordSent(rawBytes, wireBytes);
+        }
+    }
+    
+    void recordReceived(int rawBytes, int wireBytes, long nanos) {
+        rawBytesIn.add(rawBytes);
+        wireBytesIn.add(wireBytes);
+        inflateNanos.add(nanos);
+        if (total != null) {
+            total.recordReceived(rawBytes, wireBytes, nanos);
+        }
+    }
+    
+    // Counted whether or not the frame came out smaller
+    void recordDeflated(long nanos) {
+        deflateNanos.add(nanos);
+        deflatedFrames.increment();
+        if (total != null) {
+            total.recordDeflated(nanos);
+        }
+    }
+    
+    // Wire bytes per raw byte sent; below 1 means compression is paying off
+    double getSentRatio() {
+        long raw = rawBytesOut.sum();
+        return raw > 0 ? (double) wireBytesOut.sum() / raw : 1.0;
+    }
+    
+    double getReceivedRatio() {
+        long raw = rawBytesIn.sum();
+        return raw > 0 ? (double) wireBytesIn.sum() / raw : 1.0;
+    }
+    
+    long getInflateNanos() {
+        return inflateNanos.sum();
+    }
+    
+    long getDeflateNanos() {
+        return deflateNanos.sum();
+    }
+    
+    long getDeflatedFrames() {
+        return deflatedFrames.sum();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("out %d -> %d bytes (%.0f%%), in %d -> %d bytes (%.0f%%), deflate %d frames in %.2f ms, inflate %.2f ms",
+            rawBytesOut.sum(), wireBytesOut.sum(), getSentRatio() * 100,
+            rawBytesIn.sum(), wireBytesIn.sum(), getReceivedRatio() * 100,
+            getDeflatedFrames(), getDeflateNanos() / 1e6, getInflateNanos() / 1e6);
+    }
+}
+
+// ==================== EncodedMessage Class ====================
+// A message plus its wire frames, encoded at most once per protocol version
+// and then shared by every recipient. The wrapped ChatMessage must not be
+// modified once it has been handed to an EncodedMessage.
+final class EncodedMessage {
+    
+    private final ChatMessage message;
+    private final AtomicReferenceArray<byte[]> frames = new AtomicReferenceArray<>(FrameCodec.COMPRESSED_VERSION + 1);
+    
+    EncodedMessage(ChatMessage message) {
+        this.message = message;
+    }
+    
+    ChatMessage getMessage() {
+        return message;
+    }
+    
+    MessageType getType() {
+        return message.getType();
+    }
+    
+    byte[] frameFor(MessageCodec codec) throws IOException {
+        int version = codec.version();
+        byte[] frame = frames.get(version);
+        if (frame != null) {
+            return frame;
+        }
+        
+        synchronized (this) {
+            frame = frames.get(version);
+            if (frame == null) {
+                frame = codec.encodeFrame(message);
+                frames.set(version, frame);
+            }
+        }
+        return frame;
+    }
+}
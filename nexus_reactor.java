@@ -0,0 +1,553 @@
+// Nexus - Reactor.java
+// Created by Michael Semera
+// Non-blocking NIO server core: one acceptor thread and a few selector event loops
+
+package com.michaelsemera.nexus;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// ==================== Reactor Class ====================
+final class Reactor {
+    
+    private static final int ACCEPT_BACKLOG = 1024;
+    
+    // Blocking readers for legacy stream connections, see LegacyReader
+    private static final ExecutorService LEGACY_READERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "nexus-legacy-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Connection callbacks, always invoked on the connection's event loop
+    interface ConnectionListener {
+        // The client's opening bytes picked its codec; nothing is read before this
+        void onOpen(MessageCodec codec);
+        
+        void onMessage(ChatMessage message);
+        void onBytesRead(int bytes);
+        void onClosed();
+    }
+    
+    private final int port;
+    private final EventLoop[] loops;
+    private final Function<Connection, ConnectionListener> listenerFactory;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean isRunning;
+    
+    Reactor(int port, int eventLoops, FlushPolicy flushPolicy, WriteStats writeStats,
+            Function<Connection, ConnectionListener> listenerFactory) throws IOException {
+        this.port = port;
+        this.listenerFactory = listenerFactory;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop("nexus-loop-" + i, flushPolicy, writeStats);
+        }
+    }
+    
+    void bind() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        isRunning = true;
+        
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+    
+    // Accepts connections on the calling thread until shutdown() is called,
+    // handing them to the event loops round-robin
+    void run() {
+        int next = 0;
+        
+        while (isRunning) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel, listenerFactory);
+                next = (next + 1) % loops.length;
+                
+            } catch (ClosedChannelException e) {
+                break;
+                
+            } catch (IOException e) {
+                if (isRunning) {
+                    System.err.println("Error accepting client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    void shutdown() {
+        isRunning = false;
+        
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing server channel: " + e.getMessage());
+        }
+        
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+    
+    // ==================== EventLoop ====================
+    static final class EventLoop implements Runnable {
+        
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Delayed flushes; they all share one delay, so deadlines are already in order
+        private final ArrayDeque<DeferredTask> deferred = new ArrayDeque<>();
+        private final FlushPolicy flushPolicy;
+        private final WriteStats writeStats;
+        private final Thread thread;
+        private volatile boolean isRunning = true;
+        
+        EventLoop(String name, FlushPolicy flushPolicy, WriteStats writeStats) throws IOException {
+            this.selector = Selector.open();
+            this.flushPolicy = flushPolicy;
+            this.writeStats = writeStats;
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+        
+        void register(SocketChannel channel, Function<Connection, ConnectionListener> listenerFactory) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection connection = new Connection(this, channel, key);
+                    key.attach(connection);
+                    connection.open(listenerFactory);
+                    
+                } catch (IOException e) {
+                    System.err.println("Error registering client connection: " + e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+        
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+        
+        // Runs the task on this loop after the flush delay
+        void executeDeferred(Runnable task) {
+            long deadline = System.nanoTime() + flushPolicy.getFlushDelayNanos();
+            execute(() -> deferred.addLast(new DeferredTask(deadline, task)));
+        }
+        
+        void shutdown() {
+            isRunning = false;
+            selector.wakeup();
+        }
+        
+        @Override
+        public void run() {
+            while (isRunning) {
+                try {
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (!deferred.isEmpty()) {
+                        // The selector counts in milliseconds, so short delays round up to one
+                        long waitNanos = deferred.peekFirst().deadline - System.nanoTime();
+                        if (waitNanos > 0) {
+                            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                        } else {
+                            selector.selectNow();
+                        }
+                    } else {
+                        selector.select();
+                    }
+                    
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        
+                        if (key.isValid() && key.isReadable()) {
+                            connection.handleRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                    runTasks();
+                    
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+            
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).closeNow();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing selector: " + e.getMessage());
+            }
+        }
+        
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            
+            long now = System.nanoTime();
+            while (!deferred.isEmpty() && deferred.peekFirst().deadline - now <= 0) {
+                deferred.pollFirst().task.run();
+            }
+        }
+    }
+    
+    private static final class DeferredTask {
+        private final long deadline;
+        private final Runnable task;
+        
+        DeferredTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+    
+    // ==================== Connection ====================
+    // One client channel. requestFlush() and close() may be called from any
+    // thread; everything else runs on the owning event loop. Queued frames go
+    // out in gathering writes of up to MAX_GATHER frames or the flush
+    // policy's buffer size, whichever comes first.
+    static final class Connection {
+        
+        private static final int INITIAL_READ_BUFFER = 512;
+        private static final int MAX_GATHER = 64;
+        
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String remoteAddress;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean closing;
+        private volatile MessageCodec codec;        // Null until the client's opening bytes arrive
+        private LegacyReader legacyReader;
+        private ConnectionListener listener;
+        private OutboundQueue outbound;
+        private final ByteBuffer[] pendingWrites = new ByteBuffer[MAX_GATHER];
+        private int pendingStart;       // First buffer not yet fully written
+        private int pendingEnd;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.remoteAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        }
+        
+        void open(Function<Connection, ConnectionListener> listenerFactory) {
+            listener = listenerFactory.apply(this);
+        }
+        
+        String remoteAddress() {
+            return remoteAddress;
+        }
+        
+        // Decoding only; outbound entries carry the codec they were queued with
+        void setCodec(MessageCodec codec) {
+            this.codec = codec;
+        }
+        
+        // Queue drained by this connection's event loop; set by the listener
+        void setOutbound(OutboundQueue outbound) {
+            this.outbound = outbound;
+        }
+        
+        // Safe from any thread; coalesces into a single flush task, which
+        // waits out the flush delay unless a full batch is already queued
+        void requestFlush() {
+            if (!closed.get() && flushScheduled.compareAndSet(false, true)) {
+                if (loop.flushPolicy.getFlushDelayNanos() == 0 || outbound.depth() >= MAX_GATHER) {
+                    loop.execute(this::flush);
+                } else {
+                    loop.executeDeferred(this::flush);
+                }
+            }
+        }
+        
+        // Closes once everything already queued has been written
+        void close() {
+            closing = true;
+            loop.execute(this::flush);
+        }
+        
+        private void flush() {
+            flushScheduled.set(false);
+            if (closed.get()) {
+                return;
+            }
+            
+            try {
+                while (true) {
+                    if (pendingStart == pendingEnd && !gather()) {
+                        break;
+                    }
+                    
+                    long written = channel.write(pendingWrites, pendingStart, pendingEnd - pendingStart);
+                    loop.writeStats.addWrite(written);
+                    int frames = 0;
+                    while (pendingStart < pendingEnd && !pendingWrites[pendingStart].hasRemaining()) {
+                        pendingWrites[pendingStart++] = null;
+                        frames++;
+                    }
+                    loop.writeStats.addFrames(frames);
+                    
+                    if (pendingStart < pendingEnd) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    pendingStart = 0;
+                    pendingEnd = 0;
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                
+                if (closing) {
+                    closeNow();
+                }
+                
+            } catch (IOException | CancelledKeyException e) {
+                closeNow();
+            }
+        }
+        
+        // Takes queued frames for the next write; false if there were none
+        private boolean gather() throws IOException {
+            int bufferBytes = loop.flushPolicy.getBufferBytes();
+            int gathered = 0;
+            OutboundQueue.Entry entry;
+            do {
+                entry = outbound != null ? outbound.poll() : null;
+                if (entry == null) {
+                    break;
+                }
+                // Wraps the shared encoded bytes; only the position is per connection
+                ByteBuffer frame = ByteBuffer.wrap(entry.frame());
+                pendingWrites[pendingEnd++] = frame;
+                gathered += frame.remaining();
+            } while (pendingEnd < MAX_GATHER && gathered < bufferBytes);
+            return pendingEnd > 0;
+        }
+        
+        private void handleRead() {
+            try {
+                int read = channel.read(readBuffer);
+                if (read < 0) {
+                    closeNow();
+                    return;
+                }
+                listener.onBytesRead(read);
+                
+                readBuffer.flip();
+                if (codec == null && !readOpening()) {
+                    readBuffer.compact();
+                    return;
+                }
+                if (legacyReader != null) {
+                    legacyReader.feed(readBuffer);
+                    readBuffer.clear();
+                    return;
+                }
+                
+                ChatMessage message;
+                while (!closed.get() && (message = codec.tryDecode(readBuffer)) != null) {
+                    listener.onMessage(message);
+                }
+                resizeReadBuffer();
+                
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+        
+        // Picks the codec from the first four bytes; false until they have all arrived
+        private boolean readOpening() throws IOException {
+            if (readBuffer.remaining() < Integer.BYTES) {
+                return false;
+            }
+            MessageCodec opened = FrameCodec.forOpening(readBuffer.getInt());
+            codec = opened;
+            
+            if (opened.version() == FrameCodec.LEGACY_VERSION) {
+                // Our stream header goes out ahead of anything the listener queues
+                pendingWrites[pendingEnd++] = ByteBuffer.wrap(FrameCodec.opening(FrameCodec.LEGACY_MAGIC));
+                legacyReader = new LegacyReader(opened);
+                LEGACY_READERS.execute(legacyReader);
+            }
+            listener.onOpen(opened);
+            return true;
+        }
+        
+        // Grows the buffer to fit a large pending frame, and shrinks it back
+        // once drained so idle connections stay small
+        private void resizeReadBuffer() throws IOException {
+            int needed = codec.pendingFrameSize(readBuffer);
+            
+            if (!readBuffer.hasRemaining() && readBuffer.capacity() > INITIAL_READ_BUFFER) {
+                readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+                return;
+            }
+            
+            if (needed > readBuffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                larger.put(readBuffer);
+                readBuffer = larger;
+            } else {
+                readBuffer.compact();
+            }
+        }
+        
+        void closeNow() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            key.cancel();
+            closeQuietly(channel);
+            if (legacyReader != null) {
+                legacyReader.close();
+            }
+            Arrays.fill(pendingWrites, null);
+            pendingStart = 0;
+            pendingEnd = 0;
+            if (outbound != null) {
+                outbound.clear();
+            }
+            
+            if (listener != null) {
+                listener.onClosed();
+            }
+        }
+        
+        // A legacy client's messages can refer back to earlier ones, so they
+        // can't be decoded a buffer at a time. The event loop hands its bytes
+        // to a blocking reader thread, which passes each message back to the
+        // loop. Those clients are few and slow, so a thread each is fine.
+        private final class LegacyReader extends InputStream implements Runnable {
+            
+            private final byte[] end = new byte[0];
+            private final MessageCodec legacyCodec;
+            private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+            private final AtomicInteger pendingBytes = new AtomicInteger();
+            private byte[] chunk = new byte[0];
+            private int chunkPosition;
+            
+            LegacyReader(MessageCodec legacyCodec) {
+                this.legacyCodec = legacyCodec;
+            }
+            
+            // Event loop: takes everything in the buffer
+            void feed(ByteBuffer buffer) throws IOException {
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                if (pendingBytes.addAndGet(bytes.length) > FrameCodec.MAX_FRAME_SIZE) {
+                    throw new IOException("Legacy client is sending faster than it can be read");
+                }
+                chunks.add(bytes);
+            }
+            
+            @Override
+            public void close() {
+                chunks.add(end);
+            }
+            
+            @Override
+            public void run() {
+                DataInputStream in = new DataInputStream(this);
+                try {
+                    while (!closed.get()) {
+                        ChatMessage message = legacyCodec.readFrame(in);
+                        loop.execute(() -> {
+                            if (!closed.get()) {
+                                listener.onMessage(message);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    loop.execute(Connection.this::closeNow);
+                }
+            }
+            
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+            
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                if (chunkPosition == chunk.length) {
+                    if (chunk == end) {
+                        return -1;
+                    }
+                    try {
+                        chunk = chunks.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    chunkPosition = 0;
+                    pendingBytes.addAndGet(-chunk.length);
+                    if (chunk == end) {
+                        return -1;
+                    }
+                }
+                int count = Math.min(length, chunk.length - chunkPosition);
+                System.arraycopy(chunk, chunkPosition, bytes, offset, count);
+                chunkPosition += count;
+                return count;
+            }
+        }
+    }
+    
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closing
+        }
+    }
+}
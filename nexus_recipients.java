@@ -0,0 +1,65 @@
+// Nexus - RecipientSet.java
+// Created by Michael Semera
+// Lock-free copy-on-write set of broadcast recipients
+
+package com.michaelsemera.nexus;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+// ==================== RecipientSet Class ====================
+// Broadcasts iterate an immutable array snapshot with no locking; joins and
+// leaves copy the array and publish it with a CAS. Membership changes are
+// rare next to broadcasts, so paying O(n) per change is the right trade.
+final class RecipientSet<T> {
+    
+    private final AtomicReference<T[]> snapshot;
+    
+    RecipientSet(T[] empty) {
+        this.snapshot = new AtomicReference<>(empty);
+    }
+    
+    // Current members; the returned array must not be modified
+    T[] snapshot() {
+        return snapshot.get();
+    }
+    
+    int size() {
+        return snapshot.get().length;
+    }
+    
+    void add(T member) {
+        T[] current;
+        T[] next;
+        do {
+            current = snapshot.get();
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = member;
+        } while (!snapshot.compareAndSet(current, next));
+    }
+    
+    boolean remove(T member) {
+        T[] current;
+        T[] next;
+        do {
+            current = snapshot.get();
+            int index = indexOf(current, member);
+            if (index < 0) {
+                return false;
+            }
+            
+            next = Arrays.copyOf(current, current.length - 1);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+        } while (!snapshot.compareAndSet(current, next));
+        return true;
+    }
+    
+    private static int indexOf(Object[] members, Object member) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] == member) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
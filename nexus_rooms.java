@@ -0,0 +1,140 @@
+// Nexus - Room.java and RoomShards.java
+// Created by Michael Semera
+// Chat rooms with their own subscribers, history, presence and typing state
+
+package com.michaelsemera.nexus;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+// ==================== Room Class ====================
+// Everything a room needs to fan out its own traffic. Only members receive
+// a room's messages, so users pay nothing for rooms they haven't joined.
+// Fan-out runs on the room's shard; one shard serves many rooms, in order.
+//
+// Every message recorded in the history gets the next seq, counting up
+// from 1 (or from wherever the lobby's message log left off), so a client
+// that reconnects can ask for just the messages after the last one it saw.
+final class Room<M> {
+    
+    static final String LOBBY = null;
+    
+    private static final Pattern VALID_NAME = Pattern.compile("[a-z0-9_-]{1,32}");
+    
+    private final String name;
+    private final RecipientSet<M> members;
+    private final HistoryRing<EncodedMessage> history;
+    private final PresenceTracker<M> presence;
+    private final TypingAggregator typing;
+    private final Executor shard;
+    private long firstSeq = 1;          // Seq of history sequence 0
+    
+    Room(String name, M[] noMembers, int historyCapacity, long typingExpiryMillis, Executor shard,
+         Function<Room<M>, PresenceTracker.Publisher<M>> publisher) {
+        this.name = name;
+        this.members = new RecipientSet<>(noMembers);
+        this.history = new HistoryRing<>(historyCapacity);
+        this.typing = new TypingAggregator(name, typingExpiryMillis);
+        this.shard = shard;
+        this.presence = new PresenceTracker<>(name, publisher.apply(this));
+    }
+    
+    // Room names are case-insensitive; returns null if the name is not allowed
+    static String normalizeName(String name) {
+        if (name == null) {
+            return null;
+        }
+        String normalized = name.trim().toLowerCase();
+        if (normalized.startsWith("#")) {
+            normalized = normalized.substring(1);
+        }
+        return VALID_NAME.matcher(normalized).matches() ? normalized : null;
+    }
+    
+    String getName() {
+        return name;
+    }
+    
+    RecipientSet<M> getMembers() {
+        return members;
+    }
+    
+    HistoryRing<EncodedMessage> getHistory() {
+        return history;
+    }
+    
+    // Before anything is recorded
+    void startSeqAt(long seq) {
+        this.firstSeq = seq;
+    }
+    
+    // Stamps the message with its seq and appends it to the history. Callers
+    // record one at a time (the room's shard, or the lobby's history lock) and
+    // before the message is first encoded.
+    void record(EncodedMessage message) {
+        message.getMessage().setSeq(firstSeq + history.nextSequence());
+        history.append(message);
+    }
+    
+    // Seq of the newest recorded message; one less than the first seq before any
+    long lastSeq() {
+        return firstSeq + history.nextSequence() - 1;
+    }
+    
+    // Recorded messages with seqs after the first, through the second, that the
+    // history still holds, oldest first
+    List<EncodedMessage> historyBetween(long after, long through) {
+        return history.range(after + 1 - firstSeq, through + 1 - firstSeq);
+    }
+    
+    PresenceTracker<M> getPresence() {
+        return presence;
+    }
+    
+    TypingAggregator getTyping() {
+        return typing;
+    }
+    
+    Executor getShard() {
+        return shard;
+    }
+}
+
+// ==================== RoomShards Class ====================
+// A fixed set of single-threaded workers. A room always maps to the same
+// worker, which keeps its messages in order, while busy rooms on different
+// workers fan out in parallel.
+final class RoomShards {
+    
+    private final ExecutorService[] workers;
+    
+    RoomShards(int count) {
+        workers = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            String threadName = "nexus-room-" + i;
+            workers[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+    
+    Executor shardFor(String room) {
+        return workers[Math.floorMod(room.hashCode(), workers.length)];
+    }
+    
+    int size() {
+        return workers.length;
+    }
+    
+    void shutdown() {
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+    }
+}
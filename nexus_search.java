@@ -0,0 +1,381 @@
+// Nexus - SearchIndex.java
+// Created by Michael Semera
+// Incremental in-memory inverted index over chat history
+
+package com.michaelsemera.nexus;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// ==================== SearchIndex Class ====================
+// Messages are indexed by a background thread, so the chat path only
+// enqueues. The index is split into fixed-size generations; each maps terms
+// to postings of varint-encoded document id deltas. Once the capacity is
+// reached the oldest generation is dropped whole, which bounds memory.
+//
+// Query syntax, all terms ANDed:
+//   word ...              content contains every word (case-insensitive)
+//   from:alice            sent by alice
+//   after:2024-01-31      sent on or after that day
+//   before:2024-02-01     sent before that day
+//
+// Results are newest first, one page at a time. A page that has more
+// results behind it carries a cursor, which the client sends back on a line
+// of its own ("\ncursor=<id>") to fetch the next page.
+final class SearchIndex {
+    
+    static final String CURSOR_PREFIX = "\ncursor=";
+    
+    private static final int GENERATION_SIZE = 64 * 1024;
+    private static final int MAX_BATCH = 1024;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final String SENDER_PREFIX = "from:";
+    
+    private final int maxGenerations;
+    private final int generationSize;
+    private final int pageSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ArrayDeque<Generation> generations = new ArrayDeque<>();    // Oldest first
+    private final LinkedBlockingQueue<EncodedMessage> pending = new LinkedBlockingQueue<>();
+    private final Thread indexer;
+    private long nextId;
+    
+    SearchIndex(int capacity, int pageSize) {
+        this.generationSize = Math.min(capacity, GENERATION_SIZE);
+        this.maxGenerations = (capacity + generationSize - 1) / generationSize;
+        this.pageSize = pageSize;
+        this.indexer = new Thread(this::indexLoop, "nexus-search");
+        this.indexer.setDaemon(true);
+        this.indexer.start();
+    }
+    
+    // Non-blocking; the message becomes searchable shortly after
+    void add(EncodedMessage message) {
+        pending.add(message);
+    }
+    
+    // Indexes on the calling thread, used to load restored history at startup
+    void addAll(List<EncodedMessage> messages) {
+        index(messages);
+    }
+    
+    // Throws IllegalArgumentException for a malformed query
+    Page search(String request) {
+        Query query = Query.parse(request);
+        List<EncodedMessage> hits = new ArrayList<>();
+        long lastId = -1;
+        boolean more = false;
+        
+        lock.readLock().lock();
+        try {
+            Iterator<Generation> newestFirst = generations.descendingIterator();
+            while (newestFirst.hasNext() && !more) {
+                Generation generation = newestFirst.next();
+                if (generation.baseId >= query.cursor || !generation.overlaps(query.after, query.before)) {
+                    continue;
+                }
+                
+                int[][] postings = generation.postings(query.terms);
+                if (postings == null) {
+                    continue;
+                }
+                
+                // Walk the rarest term's postings, or every document if there are no terms
+                int limit = (int) Math.min(generation.size, query.cursor - generation.baseId);
+                int[] candidates = postings.length > 0 ? postings[0] : null;
+                for (int i = (candidates != null ? candidates.length : limit) - 1; i >= 0; i--) {
+                    int local = candidates != null ? candidates[i] : i;
+                    if (local >= limit || !generation.matches(local, postings, query)) {
+                        continue;
+                    }
+                    if (hits.size() == pageSize) {
+                        more = true;
+                        break;
+                    }
+                    hits.add(generation.docs[local]);
+                    lastId = generation.baseId + local;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new Page(hits, more ? lastId : -1);
+    }
+    
+    // Number of messages currently searchable
+    long size() {
+        lock.readLock().lock();
+        try {
+            long size = 0;
+            for (Generation generation : generations) {
+                size += generation.size;
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    void close() {
+        indexer.interrupt();
+    }
+    
+    private void indexLoop() {
+        List<EncodedMessage> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(pending.take());
+                pending.drainTo(batch, MAX_BATCH - 1);
+                index(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                System.err.println("Search indexing failed: " + e);
+            }
+            batch.clear();
+        }
+    }
+    
+    // Tokenizes outside the lock, then holds the write lock for the whole batch
+    private void index(List<EncodedMessage> messages) {
+        List<Set<String>> terms = new ArrayList<>(messages.size());
+        for (EncodedMessage message : messages) {
+            terms.add(termsOf(message.getMessage()));
+        }
+        
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                Generation current = generations.peekLast();
+                if (current == null || current.isFull()) {
+                    current = new Generation(nextId, generationSize);
+                    generations.addLast(current);
+                    if (generations.size() > maxGenerations) {
+                        generations.removeFirst();
+                    }
+                }
+                current.add(messages.get(i), terms.get(i));
+                nextId++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    private static Set<String> termsOf(ChatMessage message) {
+        Set<String> terms = new LinkedHashSet<>();
+        terms.add(SENDER_PREFIX + message.getSender().toLowerCase());
+        tokenize(message.getContent(), terms);
+        return terms;
+    }
+    
+    // Lower-cased runs of letters and digits
+    private static void tokenize(String text, Set<String> into) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    into.add(text.substring(start, i).toLowerCase());
+                }
+                start = -1;
+            }
+        }
+    }
+    
+    // One page of results, newest first
+    static final class Page {
+        private final List<EncodedMessage> hits;
+        private final long nextCursor;
+        
+        private Page(List<EncodedMessage> hits, long nextCursor) {
+            this.hits = hits;
+            this.nextCursor = nextCursor;
+        }
+        
+        List<EncodedMessage> getHits() {
+            return hits;
+        }
+        
+        // Text for the closing SEARCH_RESULT; includes the cursor when there is more
+        String summary() {
+            String text = hits.size() + (hits.size() == 1 ? " result" : " results");
+            return nextCursor >= 0 ? text + " (more available)" + CURSOR_PREFIX + nextCursor : text;
+        }
+    }
+    
+    private static final class Query {
+        private final List<String> terms = new ArrayList<>();
+        private long after = Long.MIN_VALUE;
+        private long before = Long.MAX_VALUE;
+        private long cursor = Long.MAX_VALUE;
+        
+        static Query parse(String request) {
+            Query query = new Query();
+            String text = request;
+            int cursorAt = request.indexOf(CURSOR_PREFIX);
+            if (cursorAt >= 0) {
+                query.cursor = parseNumber(request.substring(cursorAt + CURSOR_PREFIX.length()).trim(), "cursor");
+                text = request.substring(0, cursorAt);
+            }
+            
+            Set<String> words = new LinkedHashSet<>();
+            for (String token : text.trim().split("\\s+")) {
+                String lower = token.toLowerCase();
+                if (lower.startsWith(SENDER_PREFIX) && lower.length() > SENDER_PREFIX.length()) {
+                    words.add(lower);
+                } else if (lower.startsWith("after:")) {
+                    query.after = startOfDay(lower.substring(6));
+                } else if (lower.startsWith("before:")) {
+                    query.before = startOfDay(lower.substring(7));
+                } else {
+                    tokenize(token, words);
+                }
+            }
+            query.terms.addAll(words);
+            
+            if (query.terms.isEmpty() && query.after == Long.MIN_VALUE && query.before == Long.MAX_VALUE) {
+                throw new IllegalArgumentException("Nothing to search for");
+            }
+            return query;
+        }
+        
+        private static long startOfDay(String date) {
+            try {
+                return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Expected a date like 2024-01-31, got " + date);
+            }
+        }
+        
+        private static long parseNumber(String value, String name) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + name + ": " + value);
+            }
+        }
+    }
+    
+    // Up to generationSize consecutive documents with their own term postings
+    private static final class Generation {
+        private final long baseId;
+        private final EncodedMessage[] docs;
+        private final long[] times;
+        private final Map<String, PostingList> postings = new HashMap<>();
+        private int size;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+        
+        Generation(long baseId, int capacity) {
+            this.baseId = baseId;
+            this.docs = new EncodedMessage[capacity];
+            this.times = new long[capacity];
+        }
+        
+        boolean isFull() {
+            return size == docs.length;
+        }
+        
+        void add(EncodedMessage message, Set<String> terms) {
+            int local = size;
+            long time = message.getMessage().getEpochMillis();
+            docs[local] = message;
+            times[local] = time;
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            
+            for (String term : terms) {
+                postings.computeIfAbsent(term, key -> new PostingList()).add(local);
+            }
+            size = local + 1;
+        }
+        
+        boolean overlaps(long after, long before) {
+            return size > 0 && maxTime >= after && minTime < before;
+        }
+        
+        // Decoded postings for every term, shortest first; null if any term is absent
+        int[][] postings(List<String> terms) {
+            int[][] lists = new int[terms.size()][];
+            for (int i = 0; i < lists.length; i++) {
+                PostingList list = postings.get(terms.get(i));
+                if (list == null) {
+                    return null;
+                }
+                lists[i] = list.decode();
+            }
+            Arrays.sort(lists, Comparator.comparingInt(list -> list.length));
+            return lists;
+        }
+        
+        // The first list supplied the candidate, so only the others are checked
+        boolean matches(int local, int[][] lists, Query query) {
+            if (times[local] < query.after || times[local] >= query.before) {
+                return false;
+            }
+            for (int i = 1; i < lists.length; i++) {
+                if (Arrays.binarySearch(lists[i], local) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    // Ascending document ids stored as varint gaps, typically 1-2 bytes each
+    private static final class PostingList {
+        private byte[] bytes = new byte[4];
+        private int length;
+        private int count;
+        private int last = -1;
+        
+        void add(int doc) {
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            int gap = doc - last;
+            while ((gap & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            bytes[length++] = (byte) gap;
+            last = doc;
+            count++;
+        }
+        
+        int[] decode() {
+            int[] docs = new int[count];
+            int doc = -1;
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[position++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                doc += gap;
+                docs[i] = doc;
+            }
+            return docs;
+        }
+    }
+}
@@ -2,69 +2,137 @@
 // Created by Michael Semera
 // ChatServer.java
 
-package com.michaelsemera.pulse;
+package com.michaelsemera.nexus;
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
 public class ChatServer {
     
-    private static final int PORT = 5000;
-    private static final int MAX_CLIENTS = 50;
-    
+    private final ServerConfig config;
     private ServerSocket serverSocket;
+    private Reactor reactor;
     private ExecutorService threadPool;
+    private ExecutorService writerPool;
+    private ScheduledExecutorService timer;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final WriteStats writeStats = new WriteStats();
+    private final CompressionStats compressionTotals = new CompressionStats();    // Every connection, past and present
+    private final ServerMetrics metrics;
     private Map<String, ClientHandler> connectedClients;
-    private Map<String, String> userDatabase;
-    private List<ChatMessage> messageHistory;
-    private boolean isRunning;
+    private Room<ClientHandler> lobby;
+    private Map<String, Room<ClientHandler>> rooms;
+    private RoomShards roomShards;
+    private UserStore users;
+    private Authenticator authenticator;
+    private MessageLog messageLog;
+    private final Object historyLock = new Object();    // Lobby seqs are handed out in message log order
+    private final String runId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private String lobbyHistoryId = runId;              // The message log's id when there is one
+    private SearchIndex searchIndex;
+    private ClusterNode cluster;
+    private volatile boolean isRunning;
     
     public ChatServer() {
+        this(ServerConfig.fromArgs(new String[0]));
+    }
+    
+    public ChatServer(ServerConfig config) {
+        this.config = config;
         connectedClients = new ConcurrentHashMap<>();
-        userDatabase = new ConcurrentHashMap<>();
-        messageHistory = new CopyOnWriteArrayList<>();
-        threadPool = Executors.newFixedThreadPool(MAX_CLIENTS);
+        // The lobby fans out on the sender's thread, as it always has
+        lobby = new Room<>(Room.LOBBY, new ClientHandler[0], config.getHistoryCapacity(), config.getTypingExpiryMillis(),
+            Runnable::run, PresencePublisher::new);
+        rooms = new ConcurrentHashMap<>();
+        roomShards = new RoomShards(config.getRoomShards());
+        searchIndex = config.getSearchCapacity() > 0
+            ? new SearchIndex(config.getSearchCapacity(), config.getSearchPageSize())
+            : null;
+        metrics = new ServerMetrics(new MetricsSource(), writeStats);
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "nexus-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
         isRunning = false;
-        
-        // Initialize with sample users
-        initializeUsers();
+    }
+    
+    // Loads saved accounts; a new, empty store gets the sample users
+    private void openUserStore() throws IOException {
+        users = UserStore.open(config);
+        authenticator = new Authenticator(config, users);
+        if (users.isEmpty()) {
+            initializeUsers();
+        }
     }
     
     private void initializeUsers() {
-        // Sample users (in production, use encrypted passwords and database)
-        userDatabase.put("admin", "admin123");
-        userDatabase.put("alice", "password");
-        userDatabase.put("bob", "password");
-        userDatabase.put("charlie", "password");
+        // Sample users
+        authenticator.addUser("admin", "admin123");
+        authenticator.addUser("alice", "password");
+        authenticator.addUser("bob", "password");
+        authenticator.addUser("charlie", "password");
         
         System.out.println("User database initialized with sample users");
     }
     
     public void start() {
         try {
-            serverSocket = new ServerSocket(PORT);
+            openUserStore();
+            if (config.getLogDirectory() != null) {
+                openMessageLog();
+            }
+            if (config.getCluster() != null) {
+                cluster = new ClusterNode(config.getCluster(), new ClusterRelay());
+                cluster.start();
+            }
+            
+            if (config.getMode() == ServerConfig.Mode.REACTOR) {
+                reactor = new Reactor(config.getPort(), config.getEventLoops(), config.getFlushPolicy(), writeStats,
+                    this::openChannelClient);
+                reactor.bind();
+            } else {
+                threadPool = config.getMode() == ServerConfig.Mode.VIRTUAL_THREADS
+                    ? newVirtualThreadExecutor()
+                    : Executors.newFixedThreadPool(config.getMaxClients());
+                writerPool = config.getMode() == ServerConfig.Mode.VIRTUAL_THREADS
+                    ? threadPool
+                    : Executors.newCachedThreadPool(runnable -> {
+                        Thread thread = new Thread(runnable, "nexus-writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                serverSocket = new ServerSocket(config.getPort(), 1024);
+            }
+            if (config.isJmx()) {
+                metrics.registerJmx(config.getPort());
+            }
+            if (config.getMetricsPort() > 0) {
+                metrics.startHttp(config.getMetricsPort());
+            }
             isRunning = true;
+            timer.scheduleAtFixedRate(authenticator::sweep, 1, 1, TimeUnit.MINUTES);
+            timer.scheduleAtFixedRate(this::publishTyping, config.getTypingTickMillis(), config.getTypingTickMillis(), TimeUnit.MILLISECONDS);
             
             printBanner();
-            System.out.println("🚀 Pulse Chat Server started on port " + PORT);
+            System.out.println("🚀 Pulse Chat Server started on port " + config.getPort());
+            System.out.println("⚙️  " + config);
+            if (config.getMetricsPort() > 0) {
+                System.out.println("📈 Metrics at http://localhost:" + config.getMetricsPort() + "/metrics");
+            }
             System.out.println("⏰ " + getCurrentTimestamp());
             System.out.println("👥 Waiting for clients...\n");
             
-            while (isRunning) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    ClientHandler clientHandler = new ClientHandler(clientSocket);
-                    threadPool.execute(clientHandler);
-                    
-                } catch (IOException e) {
-                    if (isRunning) {
-                        System.err.println("Error accepting client connection: " + e.getMessage());
-                    }
-                }
+            if (reactor != null) {
+                reactor.run();
+            } else {
+                acceptSocketClients();
             }
             
         } catch (IOException e) {
@@ -74,6 +142,53 @@ public class ChatServer {
         }
     }
     
+    private void acceptSocketClients() {
+        while (isRunning) {
+            try {
+                Socket clientSocket = serverSocket.accept();
+                SocketClientHandler clientHandler = new SocketClientHandler(clientSocket);
+                clientHandler.onConnect();
+                
+                if (clientHandler.isAdmitted()) {
+                    threadPool.execute(clientHandler);
+                } else {
+                    // Refuse without queueing behind the pool; the refusal waits
+                    // for the client's opening bytes, so not on the accept thread
+                    writerPool.execute(clientHandler);
+                }
+                
+            } catch (IOException e) {
+                if (isRunning) {
+                    System.err.println("Error accepting client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    // Virtual threads need JDK 21; looked up reflectively so the server still builds on older JDKs
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual thread mode requires JDK 21 or newer", e);
+        }
+    }
+    
+    private boolean tryAdmitConnection() {
+        if (activeConnections.incrementAndGet() > config.getAdmissionLimit()) {
+            activeConnections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+    
+    private Reactor.ConnectionListener openChannelClient(Reactor.Connection connection) {
+        ChannelClientHandler clientHandler = new ChannelClientHandler(connection);
+        clientHandler.onConnect();
+        return clientHandler;
+    }
+    
     private void printBanner() {
         System.out.println("\n╔══════════════════════════════════════╗");
         System.out.println("║         💬 PULSE CHAT SERVER        ║");
@@ -94,16 +209,46 @@ public class ChatServer {
         try {
             System.out.println("\n🛑 Shutting down server...");
             
+            // Stop relaying first so peers see this node's users leave
+            if (cluster != null) {
+                cluster.shutdown();
+            }
+            
             // Close all client connections
             for (ClientHandler client : connectedClients.values()) {
                 client.disconnect();
             }
             connectedClients.clear();
             
-            // Shutdown thread pool
-            threadPool.shutdown();
-            if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
-                threadPool.shutdownNow();
+            // Shutdown thread pool or event loops
+            if (threadPool != null) {
+                threadPool.shutdown();
+                if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
+                    threadPool.shutdownNow();
+                }
+            }
+            if (writerPool != null && writerPool != threadPool) {
+                writerPool.shutdownNow();
+            }
+            if (reactor != null) {
+                reactor.shutdown();
+            }
+            timer.shutdownNow();
+            metrics.close();
+            if (authenticator != null) {
+                authenticator.shutdown();
+            }
+            roomShards.shutdown();
+            if (searchIndex != null) {
+                searchIndex.close();
+            }
+            
+            // Write out and sync whatever the message log and user store still have queued
+            if (messageLog != null) {
+                messageLog.close();
+            }
+            if (users != null) {
+                users.close();
             }
             
             // Close server socket
@@ -111,6 +256,12 @@ public class ChatServer {
                 serverSocket.close();
             }
             
+            // Every connection's compression, including those already gone
+            if (compressionTotals.getDeflatedFrames() > 0) {
+                System.out.printf("🗜️  Compressed %d frames in %.1f ms%n",
+                    compressionTotals.getDeflatedFrames(), compressionTotals.getDeflateNanos() / 1e6);
+            }
+            
             System.out.println("✅ Server shut down successfully");
             
         } catch (Exception e) {
@@ -118,233 +269,733 @@ public class ChatServer {
         }
     }
     
-    private synchronized boolean authenticateUser(String username, String password) {
-        return userDatabase.containsKey(username) && 
-               userDatabase.get(username).equals(password);
+    // Per-user outbound queue depth, for spotting slow consumers
+    public Map<String, Integer> getOutboundQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        for (Map.Entry<String, ClientHandler> entry : connectedClients.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().getOutboundDepth());
+        }
+        return depths;
     }
     
-    private synchronized boolean registerUser(String username, String password) {
-        if (userDatabase.containsKey(username)) {
-            return false; // Username already exists
+    // Compression per user, for clients that negotiated it
+    public Map<String, CompressionStats> getCompressionStats() {
+        Map<String, CompressionStats> stats = new TreeMap<>();
+        for (Map.Entry<String, ClientHandler> entry : connectedClients.entrySet()) {
+            CompressionStats compression = entry.getValue().getCompressionStats();
+            if (compression != null) {
+                stats.put(entry.getKey(), compression);
+            }
         }
-        userDatabase.put(username, password);
-        return true;
+        return stats;
     }
     
-    private synchronized boolean isUserOnline(String username) {
-        return connectedClients.containsKey(username);
+    // All compression since startup, including clients that have left
+    public CompressionStats getCompressionTotals() {
+        return compressionTotals;
     }
     
-    private synchronized void broadcastMessage(ChatMessage message, String excludeUser) {
-        for (Map.Entry<String, ClientHandler> entry : connectedClients.entrySet()) {
-            if (!entry.getKey().equals(excludeUser)) {
-                entry.getValue().sendMessage(message);
-            }
-        }
+    private int maxProtocolVersion() {
+        return config.isCompression() ? FrameCodec.COMPRESSED_VERSION : FrameCodec.BINARY_VERSION;
     }
     
-    private synchronized void sendUserList(ClientHandler client) {
-        List<String> users = new ArrayList<>(connectedClients.keySet());
-        ChatMessage userListMsg = new ChatMessage(
-            MessageType.USER_LIST,
-            "SERVER",
-            String.join(",", users),
-            getCurrentTimestamp()
-        );
-        client.sendMessage(userListMsg);
+    // Frames sent and socket writes used, across all clients
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
+    
+    // Counters and latency histograms, also exported over JMX and the metrics endpoint
+    public ServerMetrics getMetrics() {
+        return metrics;
     }
     
-    private synchronized void notifyUserJoined(String username) {
+    // Every recipient gets the same encoded bytes; nothing is re-serialized per client.
+    // Iterates a snapshot array, so broadcasts never lock or contend with joins.
+    private void broadcastMessage(EncodedMessage message, String excludeUser) {
+        long start = metrics.fanOutStart();
+        int queued = 0;
+        for (ClientHandler client : lobby.getMembers().snapshot()) {
+            if (!client.username.equals(excludeUser) && client.enqueue(message)) {
+                queued++;
+            }
+        }
+        metrics.messagesQueued(message.getType(), queued);
+        metrics.fanOutEnd(start);
+    }
+    
+    private void notifyUserJoined(ClientHandler client) {
+        String username = client.username;
         ChatMessage joinMsg = new ChatMessage(
             MessageType.USER_JOINED,
             "SERVER",
             username + " has joined the chat",
-            getCurrentTimestamp()
+            System.currentTimeMillis()
         );
-        broadcastMessage(joinMsg, username);
+        EncodedMessage encoded = new EncodedMessage(joinMsg);
+        broadcastMessage(encoded, username);
+        relay(encoded);
         
-        // Update user list for all clients
-        for (ClientHandler client : connectedClients.values()) {
-            sendUserList(client);
-        }
+        // Adds the client as a recipient and updates everyone's user list
+        lobby.getPresence().join(client, username);
     }
     
-    private synchronized void notifyUserLeft(String username) {
+    private void notifyUserLeft(ClientHandler client) {
+        String username = client.username;
         ChatMessage leaveMsg = new ChatMessage(
             MessageType.USER_LEFT,
             "SERVER",
             username + " has left the chat",
-            getCurrentTimestamp()
+            System.currentTimeMillis()
         );
-        broadcastMessage(leaveMsg, username);
+        EncodedMessage encoded = new EncodedMessage(leaveMsg);
+        broadcastMessage(encoded, username);
+        relay(encoded);
+        lobby.getTyping().remove(username);
         
         // Update user list for all clients
-        for (ClientHandler client : connectedClients.values()) {
-            sendUserList(client);
+        lobby.getPresence().leave(client, username);
+    }
+    
+    // Lobby traffic also goes to the other cluster nodes, which deliver it locally
+    private void relay(EncodedMessage message) {
+        if (cluster != null) {
+            cluster.broadcast(message);
         }
     }
     
-    private synchronized void addToHistory(ChatMessage message) {
-        messageHistory.add(message);
+    // Fans a room's presence changes out under its tracker's lock. Protocol 2
+    // clients get one delta per change; older clients still get the full USER_LIST.
+    // A null client is a user on another cluster node.
+    private class PresencePublisher implements PresenceTracker.Publisher<ClientHandler> {
+        
+        private final Room<ClientHandler> room;
+        
+        PresencePublisher(Room<ClientHandler> room) {
+            this.room = room;
+        }
+        
+        @Override
+        public boolean isConnected(ClientHandler client) {
+            return !client.isClosed();
+        }
         
-        // Keep only last 100 messages
-        if (messageHistory.size() > 100) {
-            messageHistory.remove(0);
+        @Override
+        public void joined(ClientHandler client, PresenceTracker.Change change) {
+            if (client != null) {
+                // Joining under the lock means the client misses no delta after its snapshot
+                room.getMembers().add(client);
+                client.sendMessage(client.supportsPresence() ? change.snapshot() : change.userList());
+                relayPresence('+', change);
+            }
+            publish(change, client);
+        }
+        
+        @Override
+        public void left(ClientHandler client, PresenceTracker.Change change) {
+            if (client != null) {
+                relayPresence('-', change);
+            }
+            publish(change, client);
+        }
+        
+        // Still under the lock, so peers see this node's lobby changes in order
+        private void relayPresence(char op, PresenceTracker.Change change) {
+            if (cluster != null && room.getName() == Room.LOBBY) {
+                cluster.publishPresence(op, change.getUser());
+            }
+        }
+        
+        private void publish(PresenceTracker.Change change, ClientHandler subject) {
+            EncodedMessage delta = new EncodedMessage(change.delta());
+            EncodedMessage userList = null;
+            int deltas = 0;
+            int userLists = 0;
+            
+            for (ClientHandler client : room.getMembers().snapshot()) {
+                if (client == subject) {
+                    continue;
+                }
+                if (client.supportsPresence()) {
+                    if (client.enqueue(delta)) {
+                        deltas++;
+                    }
+                } else {
+                    if (userList == null) {
+                        userList = new EncodedMessage(change.userList());
+                    }
+                    if (client.enqueue(userList)) {
+                        userLists++;
+                    }
+                }
+            }
+            metrics.messagesQueued(delta.getType(), deltas);
+            metrics.messagesQueued(MessageType.USER_LIST, userLists);
         }
     }
     
-    private synchronized void sendMessageHistory(ClientHandler client) {
-        for (ChatMessage msg : messageHistory) {
-            if (msg.getType() == MessageType.CHAT) {
-                client.sendMessage(msg);
-            }
+    // Gauges are read from the live server state whenever metrics are scraped
+    private class MetricsSource implements ServerMetrics.Source {
+        
+        @Override
+        public int connectedClients() {
+            return connectedClients.size();
+        }
+        
+        @Override
+        public int openConnections() {
+            return activeConnections.get();
+        }
+        
+        @Override
+        public int historySize() {
+            return lobby.getHistory().size();
+        }
+        
+        @Override
+        public int rooms() {
+            return rooms.size();
+        }
+        
+        @Override
+        public boolean messageLogFailed() {
+            return messageLog != null && messageLog.isFailed();
+        }
+        
+        @Override
+        public Map<String, Integer> outboundQueueDepths() {
+            return getOutboundQueueDepths();
         }
     }
     
-    // Inner class to handle individual client connections
-    private class ClientHandler implements Runnable {
+    // Delivers what other nodes relay; every node keeps its own copy of lobby history
+    private class ClusterRelay implements ClusterNode.Listener {
         
-        private Socket socket;
-        private ObjectOutputStream out;
-        private ObjectInputStream in;
-        private String username;
-        private boolean isAuthenticated;
+        @Override
+        public void onBroadcast(ChatMessage message) {
+            EncodedMessage encoded = new EncodedMessage(message);
+            if (message.getType() == MessageType.CHAT) {
+                addToHistory(encoded);
+            }
+            broadcastMessage(encoded, null);
+        }
         
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
-            this.isAuthenticated = false;
+        @Override
+        public void onPrivateMessage(String recipient, ChatMessage message) {
+            ClientHandler recipientHandler = connectedClients.get(recipient);
+            if (recipientHandler != null) {
+                recipientHandler.sendMessage(message);
+            }
         }
         
         @Override
-        public void run() {
-            try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                out.flush();
-                in = new ObjectInputStream(socket.getInputStream());
-                
-                System.out.println("📡 New client connected from: " + 
-                    socket.getInetAddress().getHostAddress());
-                
-                // Authentication loop
-                if (!handleAuthentication()) {
-                    disconnect();
-                    return;
+        public void onPeerConnected(String node) {
+            PresenceTracker<ClientHandler> presence = lobby.getPresence();
+            presence.whileLocked(() -> cluster.sendPresenceSnapshot(node, presence.localUsers()));
+            lobby.getTyping().resendLocal();
+        }
+        
+        // Joins this node's own typing users in the next lobby frame
+        @Override
+        public void onRemoteTyping(String node, List<String> users) {
+            lobby.getTyping().updateRemote(node, users);
+        }
+        
+        @Override
+        public void onRemotePresence(String node, char op, List<String> users) {
+            PresenceTracker<ClientHandler> presence = lobby.getPresence();
+            for (String user : users) {
+                if (op == '+') {
+                    presence.joinRemote(node, user);
+                } else if (op == '-') {
+                    presence.leaveRemote(node, user);
                 }
-                
-                // Add to connected clients
-                connectedClients.put(username, this);
-                notifyUserJoined(username);
-                
-                // Send message history
-                sendMessageHistory(this);
-                
-                // Message handling loop
-                while (isRunning && !socket.isClosed()) {
-                    try {
-                        ChatMessage message = (ChatMessage) in.readObject();
-                        handleMessage(message);
-                        
-                    } catch (ClassNotFoundException e) {
-                        System.err.println("Invalid message format from " + username);
-                        break;
+            }
+            if (op == '=') {
+                presence.syncRemote(node, users);
+            }
+        }
+        
+        @Override
+        public void onPeerLost(String node) {
+            lobby.getPresence().leaveAllRemote(node);
+            lobby.getTyping().removeRemote(node);
+        }
+    }
+    
+    // One TYPING frame per room whose typing users changed since the last tick,
+    // and one to each cluster peer when this node's lobby typists changed.
+    // Runs on the timer thread, the only caller of poll() and pollLocal().
+    private void publishTyping() {
+        long now = System.currentTimeMillis();
+        EncodedMessage lobbyTyping = lobby.getTyping().poll(now);
+        if (lobbyTyping != null) {
+            broadcastMessage(lobbyTyping, null);
+        }
+        if (cluster != null) {
+            EncodedMessage localTyping = lobby.getTyping().pollLocal(now);
+            if (localTyping != null) {
+                relay(localTyping);
+            }
+        }
+        
+        for (Room<ClientHandler> room : rooms.values()) {
+            EncodedMessage typing = room.getTyping().poll(now);
+            if (typing != null) {
+                onShard(room, () -> {
+                    int queued = 0;
+                    for (ClientHandler member : room.getMembers().snapshot()) {
+                        if (member.enqueue(typing)) {
+                            queued++;
+                        }
                     }
+                    metrics.messagesQueued(MessageType.TYPING, queued);
+                });
+            }
+        }
+    }
+    
+    // Only lobby chat messages are recorded, so replay needs no filtering.
+    // With a message log, a message's seq is its log offset + 1.
+    private void addToHistory(EncodedMessage message) {
+        synchronized (historyLock) {
+            lobby.record(message);
+            if (messageLog != null) {
+                messageLog.append(message);
+            }
+        }
+        if (searchIndex != null) {
+            searchIndex.add(message);
+        }
+    }
+    
+    // Recovers the on-disk log and refills the in-memory history and search index from its tail
+    private void openMessageLog() throws IOException {
+        messageLog = MessageLog.open(config);
+        int searchable = searchIndex != null ? config.getSearchCapacity() : 0;
+        HistoryRing<EncodedMessage> history = lobby.getHistory();
+        List<ChatMessage> restored = messageLog.tail(Math.max(history.capacity(), searchable));
+        
+        List<EncodedMessage> encoded = new ArrayList<>(restored.size());
+        for (ChatMessage message : restored) {
+            encoded.add(new EncodedMessage(message));
+        }
+        List<EncodedMessage> replayable = encoded.subList(Math.max(0, encoded.size() - history.capacity()), encoded.size());
+        lobbyHistoryId = messageLog.id();
+        lobby.startSeqAt(messageLog.nextOffset() - replayable.size() + 1);
+        for (EncodedMessage message : replayable) {
+            lobby.record(message);
+        }
+        if (searchIndex != null) {
+            searchIndex.addAll(encoded.subList(Math.max(0, encoded.size() - searchable), encoded.size()));
+        }
+        System.out.println("📜 Restored " + history.size() + " message(s) of history, " +
+            (searchIndex != null ? searchIndex.size() : 0) + " searchable");
+    }
+    
+    // Replays the newest entries only; a full 100k history would overflow the outbound queue.
+    // A client resuming after seq N gets what it missed instead, often nothing.
+    private void sendMessageHistory(ClientHandler client, Room<ClientHandler> room, long afterSeq) {
+        List<EncodedMessage> replay = afterSeq > 0
+            ? missedMessages(room, afterSeq)
+            : room.getHistory().snapshot(config.getHistoryReplay());
+        for (EncodedMessage msg : replay) {
+            client.sendEncoded(msg);
+        }
+    }
+    
+    // Everything after seq N, up to resume-replay messages: from the history
+    // while it still holds them, otherwise (lobby only) from the message log.
+    // Whatever can't be replayed is announced first with a HISTORY_GAP, so the
+    // client can say so instead of silently skipping ahead.
+    private List<EncodedMessage> missedMessages(Room<ClientHandler> room, long afterSeq) {
+        long through = room.lastSeq();
+        if (afterSeq >= through) {
+            return new ArrayList<>();
+        }
+        long from = Math.max(afterSeq, through - config.getResumeReplay());
+        List<EncodedMessage> missed = room.historyBetween(from, through);
+        
+        if (firstSeq(missed, through) > from + 1 && room.getName() == Room.LOBBY) {
+            // The log writer may lag behind the history, which then supplies the rest
+            List<EncodedMessage> logged = loggedMessages(from, through);
+            long loggedThrough = logged.isEmpty() ? from : logged.get(logged.size() - 1).getMessage().getSeq();
+            List<EncodedMessage> rest = room.historyBetween(loggedThrough, through);
+            if (!logged.isEmpty() && firstSeq(rest, through) == loggedThrough + 1) {
+                logged.addAll(rest);
+                missed = logged;
+            }
+        }
+        
+        long firstSent = firstSeq(missed, through);
+        if (firstSent > afterSeq + 1) {
+            ChatMessage gap = new ChatMessage(MessageType.HISTORY_GAP, "SERVER",
+                String.valueOf(firstSent - afterSeq - 1), System.currentTimeMillis());
+            gap.setRoom(room.getName());
+            gap.setSeq(firstSent - 1);
+            missed.add(0, new EncodedMessage(gap));
+        }
+        return missed;
+    }
+    
+    private static long firstSeq(List<EncodedMessage> messages, long through) {
+        return messages.isEmpty() ? through + 1 : messages.get(0).getMessage().getSeq();
+    }
+    
+    // Lobby messages after seq from, through seq through, read back from the
+    // message log (seq N is offset N - 1). A failed log no longer matches the
+    // seqs handed out, so it is not used.
+    private List<EncodedMessage> loggedMessages(long from, long through) {
+        List<EncodedMessage> logged = new ArrayList<>();
+        if (messageLog == null || messageLog.isFailed()) {
+            return logged;
+        }
+        long offset = Math.max(from, messageLog.firstOffset());
+        try {
+            for (ChatMessage message : messageLog.read(offset, (int) (through - offset))) {
+                // Records written before seqs existed don't carry one
+                if (message.getSeq() == 0) {
+                    message.setSeq(offset + 1);
                 }
-                
-            } catch (IOException e) {
-                System.out.println("🔌 Client disconnected: " + 
-                    (username != null ? username : "Unknown"));
-                
-            } finally {
-                disconnect();
+                offset = message.getSeq();
+                logged.add(new EncodedMessage(message));
             }
+        } catch (IOException e) {
+            System.err.println("Message log read failed: " + e.getMessage());
+            logged.clear();
+        }
+        return logged;
+    }
+    
+    // Rooms are created on first join and kept, with their history, while the server runs
+    private Room<ClientHandler> openRoom(String name) {
+        Room<ClientHandler> room = rooms.get(name);
+        if (room != null || rooms.size() >= config.getMaxRooms()) {
+            return room;
+        }
+        return rooms.computeIfAbsent(name, key -> new Room<>(key, new ClientHandler[0], config.getRoomHistoryCapacity(),
+            config.getTypingExpiryMillis(), roomShards.shardFor(key), PresencePublisher::new));
+    }
+    
+    // Every change to a room runs on its shard, so joins, leaves and messages stay in order
+    private void onShard(Room<ClientHandler> room, Runnable task) {
+        try {
+            room.getShard().execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
         }
+    }
+    
+    // Connection-independent session logic; subclasses supply the transport
+    private abstract class ClientHandler {
         
-        private boolean handleAuthentication() throws IOException {
-            try {
-                // Send authentication request
-                ChatMessage authRequest = new ChatMessage(
-                    MessageType.AUTH_REQUEST,
-                    "SERVER",
-                    "Please authenticate",
-                    getCurrentTimestamp()
-                );
-                sendMessage(authRequest);
-                
-                // Wait for authentication response (with timeout)
-                socket.setSoTimeout(30000); // 30 seconds timeout
-                
-                ChatMessage response = (ChatMessage) in.readObject();
-                
-                if (response.getType() == MessageType.LOGIN) {
-                    return handleLogin(response);
+        private static final int MAX_EARLY_MESSAGES = 64;
+        
+        protected String username;
+        private volatile boolean isAuthenticated;
+        private final Object authLock = new Object();
+        private boolean authStarted;                                            // Guarded by authLock
+        private final List<ChatMessage> earlyMessages = new ArrayList<>();      // Guarded by authLock
+        private long resumeLobbyAfter;                                          // Guarded by authLock
+        private volatile boolean resumeRooms;       // Room joins may ask for just what they missed
+        private final boolean admitted = tryAdmitConnection();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final OutboundQueue outbound = new OutboundQueue(config.getSlowConsumerPolicy());
+        private final Set<Room<ClientHandler>> joinedRooms = ConcurrentHashMap.newKeySet();
+        protected volatile MessageCodec codec = FrameCodec.SERIALIZED;
+        private volatile CompressionStats compression;      // Set if the client picked protocol 3
+        private ScheduledFuture<?> authTimeout;
+        
+        // Called after a message has been queued for this client's writer
+        protected abstract void onOutboundReady();
+        
+        // Closes the transport once queued messages have been written
+        protected abstract void closeConnection();
+        
+        protected abstract String remoteAddress();
+        
+        // Queues without blocking; slow consumers are handled by the outbound policy
+        public void sendEncoded(EncodedMessage message) {
+            if (enqueue(message)) {
+                metrics.messageQueued(message.getType());
+            }
+        }
+        
+        // sendEncoded for broadcasts, which count their recipients once at the end.
+        // True if the message was queued or replaced a queued copy.
+        boolean enqueue(EncodedMessage message) {
+            switch (outbound.offer(message, codec)) {
+                case QUEUED:
+                case COALESCED:
+                    onOutboundReady();
+                    return true;
                     
-                } else if (response.getType() == MessageType.REGISTER) {
-                    return handleRegister(response);
+                case OVERFLOW:
+                    System.out.println("🐢 Disconnecting slow consumer: " + 
+                        (username != null ? username : remoteAddress()) + " (" + outbound.depth() + " queued)");
+                    outbound.clear();
+                    disconnect();
+                    return false;
+                    
+                default:
+                    // Dropped by policy or already closed
+                    return false;
+            }
+        }
+        
+        public void sendMessage(ChatMessage message) {
+            sendEncoded(new EncodedMessage(message));
+        }
+        
+        public int getOutboundDepth() {
+            return outbound.depth();
+        }
+        
+        // Null unless this client negotiated compression
+        public CompressionStats getCompressionStats() {
+            return compression;
+        }
+        
+        protected OutboundQueue outbound() {
+            return outbound;
+        }
+        
+        // Switches the wire format for everything read and written after this call
+        protected void useCodec(MessageCodec codec) {
+            this.codec = codec;
+        }
+        
+        // PRESENCE arrived with protocol 2; version 0 and 1 clients can't decode it
+        protected boolean supportsPresence() {
+            return codec.version() >= FrameCodec.BINARY_VERSION;
+        }
+        
+        protected boolean isClosed() {
+            return closed.get();
+        }
+        
+        protected boolean isAdmitted() {
+            return admitted;
+        }
+        
+        // At accept; the auth timeout also covers a client that never sends its opening bytes
+        protected void onConnect() {
+            authTimeout = timer.schedule(() -> {
+                if (!isAuthenticated) {
+                    System.out.println("⏰ Authentication timeout");
+                    disconnect();
                 }
-                
-                return false;
-                
-            } catch (SocketTimeoutException e) {
-                System.out.println("⏰ Authentication timeout");
-                return false;
-                
-            } catch (ClassNotFoundException | IOException e) {
-                System.err.println("Authentication error: " + e.getMessage());
-                return false;
+            }, config.getAuthTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+        
+        // The client's opening bytes picked its codec; nothing was sent before this
+        public void onOpen(MessageCodec opened) {
+            useCodec(opened);
+            if (!admitted) {
+                System.out.println("🚫 Connection limit reached, refusing: " + remoteAddress());
+                sendMessage(new ChatMessage(
+                    MessageType.ERROR,
+                    "SERVER",
+                    "Server is full, please try again later",
+                    System.currentTimeMillis()
+                ));
+                disconnect();
+                return;
+            }
+            
+            System.out.println("📡 New client connected from: " + remoteAddress());
+            
+            // Send authentication request; only framed clients can negotiate or resume
+            String prompt = "Please authenticate";
+            if (opened.version() != FrameCodec.LEGACY_VERSION) {
+                prompt = FrameCodec.withProtocolOffer(FrameCodec.withHistoryOffer(prompt, lobbyHistoryId, runId),
+                    maxProtocolVersion());
             }
+            ChatMessage authRequest = new ChatMessage(
+                MessageType.AUTH_REQUEST,
+                "SERVER",
+                prompt,
+                System.currentTimeMillis()
+            );
+            sendMessage(authRequest);
         }
         
-        private boolean handleLogin(ChatMessage message) {
-            String[] credentials = message.getContent().split(":");
+        // Entry point for every inbound message; the first one must authenticate
+        protected void receive(ChatMessage message) {
+            if (isClosed()) {
+                return;
+            }
+            metrics.messageReceived(message.getType());
             
-            if (credentials.length != 2) {
-                sendAuthResult(false, "Invalid credentials format");
-                return false;
+            if (isAuthenticated) {
+                handleMessage(message);
+                return;
             }
             
-            String user = credentials[0];
-            String pass = credentials[1];
+            synchronized (authLock) {
+                if (!isAuthenticated) {
+                    receiveUnauthenticated(message);
+                    return;
+                }
+            }
+            // Authentication finished while this thread waited for the lock
+            handleMessage(message);
+        }
+        
+        // Called with authLock held
+        private void receiveUnauthenticated(ChatMessage message) {
+            if (authStarted) {
+                // Sent right after AUTH_SUCCESS, while the session is still starting
+                if (earlyMessages.size() < MAX_EARLY_MESSAGES) {
+                    earlyMessages.add(message);
+                }
+                return;
+            }
             
-            if (isUserOnline(user)) {
-                sendAuthResult(false, "User already logged in");
-                return false;
+            // A legacy stream can't switch codecs, so HELLO there fails as a login
+            if (message.getType() == MessageType.HELLO && codec.version() != FrameCodec.LEGACY_VERSION) {
+                handleHello(message);
+                return;
+            }
+            if (message.getType() == MessageType.RESUME) {
+                handleResume(message);
+                return;
             }
             
-            if (authenticateUser(user, pass)) {
-                this.username = user;
-                this.isAuthenticated = true;
-                sendAuthResult(true, "Login successful");
-                
-                System.out.println("✅ User authenticated: " + username);
-                return true;
+            authStarted = true;
+            authTimeout.cancel(false);
+            handleAuthentication(message);
+        }
+        
+        private void handleHello(ChatMessage hello) {
+            int version = FrameCodec.acceptVersion(hello, maxProtocolVersion());
+            
+            // Confirm in the current format, then switch
+            sendMessage(new ChatMessage(
+                MessageType.HELLO,
+                "SERVER",
+                String.valueOf(version),
+                System.currentTimeMillis()
+            ));
+            if (version == FrameCodec.COMPRESSED_VERSION) {
+                compression = new CompressionStats(compressionTotals);
+                useCodec(new CompressedCodec(config.getCompressMinBytes(), compression));
             } else {
-                sendAuthResult(false, "Invalid username or password");
-                return false;
+                useCodec(FrameCodec.forVersion(version));
             }
         }
         
-        private boolean handleRegister(ChatMessage message) {
-            String[] credentials = message.getContent().split(":");
+        // The client was here before and names the history its seqs came from. Lobby
+        // seqs survive a restart along with the message log; room seqs don't.
+        private void handleResume(ChatMessage resume) {
+            String previous = resume.getContent() != null ? resume.getContent() : "";
+            if (FrameCodec.lobbyHistoryOf(previous).equals(lobbyHistoryId)) {
+                resumeLobbyAfter = resume.getSeq();
+            }
+            resumeRooms = FrameCodec.runOf(previous).equals(runId);
+        }
+        
+        // Password checks run on the auth stage; this thread goes straight back to its other clients
+        private void handleAuthentication(ChatMessage response) {
+            boolean register = response.getType() == MessageType.REGISTER;
+            if (!register && response.getType() != MessageType.LOGIN) {
+                disconnect();
+                return;
+            }
+            
+            String[] credentials = response.getContent().split(":");
             
             if (credentials.length != 2) {
                 sendAuthResult(false, "Invalid credentials format");
-                return false;
+                disconnect();
+                return;
             }
             
             String user = credentials[0];
             String pass = credentials[1];
             
-            if (registerUser(user, pass)) {
+            if (redirectToOwner(user)) {
+                disconnect();
+                return;
+            }
+            
+            long started = System.nanoTime();
+            CompletableFuture<Authenticator.Result> attempt = register
+                ? authenticator.register(remoteAddress(), user, pass)
+                : authenticator.login(remoteAddress(), user, pass);
+            attempt.whenComplete((result, error) -> {
+                metrics.authenticated(System.nanoTime() - started);
+                if (error != null) {
+                    System.err.println("Authentication error for " + user + ": " + error);
+                    result = Authenticator.Result.BUSY;
+                }
+                finishAuthentication(user, register, result);
+            });
+        }
+        
+        // Runs on the auth stage (or inline for cached logins and rejections)
+        private void finishAuthentication(String user, boolean register, Authenticator.Result result) {
+            synchronized (authLock) {
+                String failure = authFailureText(result);
                 this.username = user;
-                this.isAuthenticated = true;
-                sendAuthResult(true, "Registration successful");
+                if (failure == null && !claimLoginSlot(user)) {
+                    failure = "User already logged in";
+                }
+                if (failure != null) {
+                    sendAuthResult(false, failure);
+                    disconnect();
+                    return;
+                }
                 
-                System.out.println("📝 New user registered: " + username);
-                return true;
-            } else {
-                sendAuthResult(false, "Username already exists");
+                // Closed while the hash ran: give the slot back, disconnect() may have missed it
+                if (isClosed()) {
+                    connectedClients.remove(user, this);
+                    return;
+                }
+                
+                sendAuthResult(true, register ? "Registration successful" : "Login successful");
+                System.out.println((register ? "📝 New user registered: " : "✅ User authenticated: ") + user);
+                
+                // The login slot was claimed during authentication; start receiving broadcasts
+                notifyUserJoined(this);
+                
+                // Send message history, or only what was missed since the last connection
+                sendMessageHistory(this, lobby, resumeLobbyAfter);
+                
+                for (ChatMessage early : earlyMessages) {
+                    handleMessage(early);
+                }
+                earlyMessages.clear();
+                isAuthenticated = true;
+            }
+        }
+        
+        private String authFailureText(Authenticator.Result result) {
+            switch (result) {
+                case SUCCESS:
+                    return null;
+                case EXISTS:
+                    return "Username already exists";
+                case THROTTLED:
+                    return "Too many login attempts, try again later";
+                case BUSY:
+                    return "Server busy, try again later";
+                default:
+                    return "Invalid username or password";
+            }
+        }
+        
+        // In a cluster each user lives on exactly one node, which also holds their account
+        private boolean redirectToOwner(String user) {
+            if (cluster == null || cluster.owns(user)) {
                 return false;
             }
+            sendAuthResult(false, ClusterNode.REDIRECT_PREFIX + cluster.ownerOf(user).getClientAddress());
+            return true;
+        }
+        
+        // Atomic check-and-set, so two concurrent logins for one user can't both succeed
+        private boolean claimLoginSlot(String user) {
+            return connectedClients.putIfAbsent(user, this) == null;
         }
         
         private void sendAuthResult(boolean success, String message) {
@@ -352,16 +1003,12 @@ public class ChatServer {
                 success ? MessageType.AUTH_SUCCESS : MessageType.AUTH_FAILURE,
                 "SERVER",
                 message,
-                getCurrentTimestamp()
+                System.currentTimeMillis()
             );
             sendMessage(result);
         }
         
         private void handleMessage(ChatMessage message) {
-            if (!isAuthenticated) {
-                return;
-            }
-            
             switch (message.getType()) {
                 case CHAT:
                     handleChatMessage(message);
@@ -375,6 +1022,22 @@ public class ChatServer {
                     broadcastTypingStatus(message);
                     break;
                     
+                case SEARCH:
+                    handleSearch(message);
+                    break;
+                    
+                case JOIN_ROOM:
+                    handleJoinRoom(message);
+                    break;
+                    
+                case LEAVE_ROOM:
+                    handleLeaveRoom(message);
+                    break;
+                    
+                case ROOM_CHAT:
+                    handleRoomChat(message);
+                    break;
+                    
                 case DISCONNECT:
                     disconnect();
                     break;
@@ -387,15 +1050,117 @@ public class ChatServer {
         private void handleChatMessage(ChatMessage message) {
             // Add sender information and timestamp
             message.setSender(username);
-            message.setTimestamp(getCurrentTimestamp());
+            message.setEpochMillis(System.currentTimeMillis());
             
             System.out.println("💬 [" + username + "]: " + message.getContent());
             
-            // Add to history
-            addToHistory(message);
+            // Encode once for history replay and the broadcast
+            EncodedMessage encoded = new EncodedMessage(message);
+            addToHistory(encoded);
             
             // Broadcast to all clients
-            broadcastMessage(message, null);
+            broadcastMessage(encoded, null);
+            relay(encoded);
+        }
+        
+        private void handleJoinRoom(ChatMessage request) {
+            String name = Room.normalizeName(request.getContent());
+            if (name == null) {
+                sendError("Room names are 1-32 letters, digits, '-' or '_'");
+                return;
+            }
+            
+            Room<ClientHandler> room = openRoom(name);
+            if (room == null) {
+                sendError("Room limit reached, cannot create #" + name);
+                return;
+            }
+            if (!joinedRooms.add(room)) {
+                return;
+            }
+            
+            // Snapshot and replay happen on the shard, ahead of any later room message
+            onShard(room, () -> {
+                room.getPresence().join(this, username);
+                sendMessageHistory(this, room, resumeRooms ? request.getSeq() : 0);
+            });
+            System.out.println("🚪 " + username + " joined #" + name);
+        }
+        
+        private void handleLeaveRoom(ChatMessage request) {
+            String name = Room.normalizeName(request.getContent());
+            Room<ClientHandler> room = name != null ? rooms.get(name) : null;
+            if (room != null && joinedRooms.remove(room)) {
+                leaveRoom(room);
+            }
+        }
+        
+        private void leaveRoom(Room<ClientHandler> room) {
+            onShard(room, () -> {
+                room.getMembers().remove(this);
+                room.getTyping().remove(username);
+                room.getPresence().leave(this, username);
+            });
+        }
+        
+        // Members only; the sender gets its own message back like in the lobby
+        private void handleRoomChat(ChatMessage message) {
+            String name = Room.normalizeName(message.getRoom());
+            Room<ClientHandler> room = name != null ? rooms.get(name) : null;
+            if (room == null || !joinedRooms.contains(room)) {
+                sendError("Join #" + (name != null ? name : message.getRoom()) + " before posting to it");
+                return;
+            }
+            
+            message.setSender(username);
+            message.setEpochMillis(System.currentTimeMillis());
+            message.setRoom(room.getName());
+            EncodedMessage encoded = new EncodedMessage(message);
+            
+            onShard(room, () -> {
+                room.record(encoded);
+                long start = metrics.fanOutStart();
+                int queued = 0;
+                for (ClientHandler member : room.getMembers().snapshot()) {
+                    if (member.enqueue(encoded)) {
+                        queued++;
+                    }
+                }
+                metrics.messagesQueued(encoded.getType(), queued);
+                metrics.fanOutEnd(start);
+            });
+        }
+        
+        private void sendError(String text) {
+            sendMessage(new ChatMessage(MessageType.ERROR, "SERVER", text, System.currentTimeMillis()));
+        }
+        
+        // Hits go back as SEARCH_RESULT with their original sender and time,
+        // followed by a summary from SERVER that carries the next-page cursor
+        private void handleSearch(ChatMessage request) {
+            if (searchIndex == null) {
+                sendMessage(new ChatMessage(MessageType.ERROR, "SERVER", "Search is disabled", System.currentTimeMillis()));
+                return;
+            }
+            
+            SearchIndex.Page page;
+            try {
+                page = searchIndex.search(request.getContent());
+            } catch (IllegalArgumentException e) {
+                sendMessage(new ChatMessage(MessageType.ERROR, "SERVER", "Invalid search: " + e.getMessage(), System.currentTimeMillis()));
+                return;
+            }
+            
+            for (EncodedMessage hit : page.getHits()) {
+                ChatMessage original = hit.getMessage();
+                sendMessage(new ChatMessage(
+                    MessageType.SEARCH_RESULT,
+                    original.getSender(),
+                    original.getContent(),
+                    original.getEpochMillis()
+                ));
+            }
+            sendMessage(new ChatMessage(MessageType.SEARCH_RESULT, "SERVER", page.summary(), System.currentTimeMillis()));
         }
         
         private void handlePrivateMessage(ChatMessage message) {
@@ -407,22 +1172,29 @@ public class ChatServer {
             String recipient = parts[0];
             String content = parts[1];
             
+            // Recipients on another node are reached over that node's relay link
             ClientHandler recipientHandler = connectedClients.get(recipient);
+            boolean delivered;
             if (recipientHandler != null) {
                 ChatMessage privateMsg = new ChatMessage(
                     MessageType.PRIVATE_MESSAGE,
                     username,
                     content,
-                    getCurrentTimestamp()
+                    System.currentTimeMillis()
                 );
                 recipientHandler.sendMessage(privateMsg);
-                
+                delivered = true;
+            } else {
+                delivered = cluster != null && cluster.sendPrivate(username, recipient, content);
+            }
+            
+            if (delivered) {
                 // Send confirmation to sender
                 ChatMessage confirmation = new ChatMessage(
                     MessageType.PRIVATE_MESSAGE,
                     "You",
                     "→ " + recipient + ": " + content,
-                    getCurrentTimestamp()
+                    System.currentTimeMillis()
                 );
                 sendMessage(confirmation);
                 
@@ -432,39 +1204,171 @@ public class ChatServer {
                     MessageType.ERROR,
                     "SERVER",
                     "User " + recipient + " not found",
-                    getCurrentTimestamp()
+                    System.currentTimeMillis()
                 );
                 sendMessage(error);
             }
         }
         
+        // Only records the state; publishTyping sends it on the next tick
         private void broadcastTypingStatus(ChatMessage message) {
-            broadcastMessage(message, null);
+            boolean typing = "typing".equals(message.getContent());
+            long now = System.currentTimeMillis();
+            
+            if (message.getRoom() == null) {
+                lobby.getTyping().update(username, typing, now);
+                return;
+            }
+            
+            String name = Room.normalizeName(message.getRoom());
+            Room<ClientHandler> room = name != null ? rooms.get(name) : null;
+            if (room != null && joinedRooms.contains(room)) {
+                room.getTyping().update(username, typing, now);
+            }
         }
         
-        public void sendMessage(ChatMessage message) {
+        public void disconnect() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (authTimeout != null) {
+                authTimeout.cancel(false);
+            }
+            if (admitted) {
+                activeConnections.decrementAndGet();
+            }
+            
+            if (username != null && connectedClients.remove(username, this)) {
+                lobby.getMembers().remove(this);
+                notifyUserLeft(this);
+                for (Room<ClientHandler> room : joinedRooms) {
+                    leaveRoom(room);
+                }
+                System.out.println("👋 User disconnected: " + username);
+                if (compression != null) {
+                    System.out.println("🗜️  " + username + " compression: " + compression);
+                }
+            }
+            
+            outbound.close();
+            closeConnection();
+        }
+    }
+    
+    // Blocking socket transport: a pooled or virtual reader thread per client,
+    // plus a writer task that drains the client's outbound queue
+    private class SocketClientHandler extends ClientHandler implements Runnable {
+        
+        private static final long CLOSE_GRACE_SECONDS = 5;
+        private static final int REFUSAL_OPENING_MILLIS = 1000;
+        
+        private final Socket socket;
+        private OutputStream out;
+        private DataInputStream in;
+        
+        public SocketClientHandler(Socket socket) {
+            this.socket = socket;
+        }
+        
+        @Override
+        public void run() {
             try {
-                out.writeObject(message);
-                out.flush();
-                out.reset(); // Prevent memory leak
+                // Writes are batched here, so Nagle would only add delay
+                socket.setTcpNoDelay(true);
+                out = socket.getOutputStream();
+                in = new DataInputStream(new BufferedInputStream(metrics.counting(socket.getInputStream())));
+                if (!isAdmitted()) {
+                    // Only waits to learn which format to refuse in
+                    socket.setSoTimeout(REFUSAL_OPENING_MILLIS);
+                }
+                
+                // Legacy clients get our stream header before the writer starts
+                MessageCodec opened = FrameCodec.forOpening(in.readInt());
+                if (opened.version() == FrameCodec.LEGACY_VERSION) {
+                    out.write(FrameCodec.opening(FrameCodec.LEGACY_MAGIC));
+                }
+                writerPool.execute(this::writeLoop);
+                onOpen(opened);
+                
+                // Message handling loop
+                while (isRunning && !isClosed()) {
+                    receive(codec.readFrame(in));
+                }
+                
+            } catch (StreamCorruptedException e) {
+                System.err.println("Invalid message format from " + username);
                 
             } catch (IOException e) {
-                System.err.println("Error sending message to " + username + ": " + e.getMessage());
+                System.out.println("🔌 Client disconnected: " + 
+                    (username != null ? username : "Unknown"));
+                
+            } finally {
                 disconnect();
             }
         }
         
-        public void disconnect() {
+        // Frames are gathered in a buffer that writes itself out whenever it
+        // fills; what's left is flushed once the queue runs dry, waiting up to
+        // the flush delay (if any) after the batch's first frame for more
+        private void writeLoop() {
+            FlushPolicy policy = config.getFlushPolicy();
+            long flushDelayNanos = policy.getFlushDelayNanos();
+            OutputStream counted = writeStats.counting(out);
+            OutputStream buffered = policy.getBufferBytes() > 0
+                ? new BufferedOutputStream(counted, policy.getBufferBytes())
+                : counted;
+            
             try {
-                if (username != null && connectedClients.containsKey(username)) {
-                    connectedClients.remove(username);
-                    notifyUserLeft(username);
-                    System.out.println("👋 User disconnected: " + username);
+                OutboundQueue.Entry entry;
+                while ((entry = outbound().take()) != null) {
+                    long flushAt = System.nanoTime() + flushDelayNanos;
+                    int frames = 0;
+                    do {
+                        buffered.write(entry.frame());
+                        frames++;
+                        entry = outbound().poll();
+                        if (entry == null && flushDelayNanos > 0) {
+                            entry = outbound().poll(flushAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        }
+                    } while (entry != null);
+                    
+                    buffered.flush();
+                    writeStats.addFrames(frames);
+                }
+                
+            } catch (IOException e) {
+                if (!isClosed()) {
+                    System.err.println("Error sending message to " + username + ": " + e.getMessage());
                 }
                 
-                if (out != null) out.close();
-                if (in != null) in.close();
-                if (socket != null && !socket.isClosed()) socket.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                
+            } finally {
+                closeSocket();
+                disconnect();
+            }
+        }
+        
+        @Override
+        protected void onOutboundReady() {
+            // The writer is already waiting on the queue
+        }
+        
+        @Override
+        protected String remoteAddress() {
+            return socket.getInetAddress().getHostAddress();
+        }
+        
+        @Override
+        protected void closeConnection() {
+            // The writer closes the socket after draining; don't wait forever on a stuck peer
+            timer.schedule(this::closeSocket, CLOSE_GRACE_SECONDS, TimeUnit.SECONDS);
+        }
+        
+        private void closeSocket() {
+            try {
+                if (!socket.isClosed()) socket.close();
                 
             } catch (IOException e) {
                 System.err.println("Error closing connection: " + e.getMessage());
@@ -472,8 +1376,59 @@ public class ChatServer {
         }
     }
     
+    // Non-blocking transport driven by a Reactor event loop
+    private class ChannelClientHandler extends ClientHandler implements Reactor.ConnectionListener {
+        
+        private final Reactor.Connection connection;
+        
+        public ChannelClientHandler(Reactor.Connection connection) {
+            this.connection = connection;
+            connection.setOutbound(outbound());
+        }
+        
+        @Override
+        public void onMessage(ChatMessage message) {
+            receive(message);
+        }
+        
+        @Override
+        public void onBytesRead(int bytes) {
+            metrics.bytesReceived(bytes);
+        }
+        
+        @Override
+        public void onClosed() {
+            if (!isClosed()) {
+                System.out.println("🔌 Client disconnected: " + 
+                    (username != null ? username : "Unknown"));
+            }
+            disconnect();
+        }
+        
+        @Override
+        protected void onOutboundReady() {
+            connection.requestFlush();
+        }
+        
+        @Override
+        protected String remoteAddress() {
+            return connection.remoteAddress();
+        }
+        
+        @Override
+        protected void useCodec(MessageCodec codec) {
+            super.useCodec(codec);
+            connection.setCodec(codec);
+        }
+        
+        @Override
+        protected void closeConnection() {
+            connection.close();
+        }
+    }
+    
     public static void main(String[] args) {
-        ChatServer server = new ChatServer();
+        ChatServer server = new ChatServer(ServerConfig.fromArgs(args));
         
         // Add shutdown hook for graceful termination
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
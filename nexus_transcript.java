@@ -0,0 +1,146 @@
+// Nexus - ChatTranscript.java
+// Created by Michael Semera
+// Everything a client has displayed, on disk, for paging back through the chat
+
+package com.michaelsemera.nexus;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// ==================== ChatTranscript Class ====================
+// The chat view only keeps a window of lines in memory; every line it has
+// shown is appended here and read back when the user scrolls past either
+// end of the window. Lines are numbered from 0 in the order they were
+// appended.
+//
+// The file is a sequence of records
+//   int      length of the line
+//   byte[]   the line in UTF-8
+// and the only thing kept in memory per line is one file position for every
+// CHECKPOINT_LINES lines, so a session of a million lines costs about 30 KB
+// of heap. A read seeks to the checkpoint before the first wanted line and
+// skips forward at most CHECKPOINT_LINES - 1 records.
+//
+// Appends are buffered and reach the file before the next read. Not thread
+// safe: ChatClient only uses it from the FX thread.
+final class ChatTranscript implements Closeable {
+    
+    private static final int CHECKPOINT_LINES = 256;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+    
+    private final Path file;
+    private final boolean temporary;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+    private long[] checkpoints = new long[64];
+    private long flushedBytes;
+    private long lines;
+    
+    ChatTranscript(Path file) throws IOException {
+        this(file, false);
+    }
+    
+    private ChatTranscript(Path file, boolean temporary) throws IOException {
+        this.file = file;
+        this.temporary = temporary;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    
+    // A transcript in the temp directory that is deleted again on close
+    static ChatTranscript createTemporary() throws IOException {
+        Path file = Files.createTempFile("nexus-transcript-", ".log");
+        file.toFile().deleteOnExit();
+        return new ChatTranscript(file, true);
+    }
+    
+    // Returns the line's number
+    long append(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (lines % CHECKPOINT_LINES == 0) {
+            int checkpoint = (int) (lines / CHECKPOINT_LINES);
+            if (checkpoint == checkpoints.length) {
+                checkpoints = Arrays.copyOf(checkpoints, checkpoints.length * 2);
+            }
+            checkpoints[checkpoint] = flushedBytes + buffer.position();
+        }
+        
+        if (buffer.remaining() < Integer.BYTES + bytes.length) {
+            flush();
+        }
+        if (buffer.remaining() < Integer.BYTES + bytes.length) {
+            // Longer than the whole buffer; written straight through
+            ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + bytes.length);
+            record.putInt(bytes.length).put(bytes).flip();
+            writeFully(record);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+        return lines++;
+    }
+    
+    long size() {
+        return lines;
+    }
+    
+    // Up to count lines starting at line number from
+    List<String> read(long from, int count) throws IOException {
+        if (from < 0 || from >= lines || count <= 0) {
+            return new ArrayList<>();
+        }
+        flush();
+        
+        int checkpoint = (int) (from / CHECKPOINT_LINES);
+        long line = (long) checkpoint * CHECKPOINT_LINES;
+        long end = Math.min(lines, from + count);
+        List<String> result = new ArrayList<>((int) (end - from));
+        
+        channel.position(checkpoints[checkpoint]);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        for (; line < end; line++) {
+            int length = in.readInt();
+            if (line < from) {
+                if (in.skipBytes(length) != length) {
+                    throw new EOFException("Transcript ends inside line " + line);
+                }
+            } else {
+                result.add(new String(in.readNBytes(length), StandardCharsets.UTF_8));
+            }
+        }
+        // Left open: closing the stream would close the channel
+        return result;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (temporary) {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    private void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+    
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            flushedBytes += channel.write(bytes, flushedBytes);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+// Nexus - TypingAggregator.java
+// Created by Michael Semera
+// Per-room typing state, published as one batched frame per tick
+
+package com.michaelsemera.nexus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// ==================== TypingAggregator Class ====================
+// Typing toggles only update a map here. Once per tick the server polls each
+// room; if the set of typing users changed, every member gets a single
+// TYPING frame naming all of them:
+//
+//   sender    "alice,bob" (at most MAX_NAMES, then "+<n>" for the rest)
+//   content   "typing", or "stopped" once nobody is
+//
+// Users who stop sending updates expire, so a crashed client can't stay
+// "typing" forever. Traffic is one frame per member per change, however
+// fast people type.
+//
+// In a cluster the lobby's frame also names users typing on other nodes.
+// Each peer sends its own full list, in the same format without the "+<n>"
+// cut-off, whenever that list changes; it replaces whatever the peer sent
+// before and is dropped with the link. Peers only ever hear local typists,
+// so no list echoes back to where it came from.
+final class TypingAggregator {
+    
+    static final int DEFAULT_EXPIRY_MILLIS = 10000;
+    private static final int MAX_NAMES = 8;
+    
+    private final String room;
+    private final long expiryMillis;
+    private final Map<String, Long> typing = new ConcurrentHashMap<>();    // User -> last "typing" update
+    private final Map<String, List<String>> remote = new ConcurrentHashMap<>();    // Node -> its typing users
+    private String lastSent = "";       // Only touched by the polling thread
+    private String lastRelayed = "";    // Likewise
+    private volatile boolean resend;
+    
+    TypingAggregator(String room, long expiryMillis) {
+        this.room = room;
+        this.expiryMillis = expiryMillis;
+    }
+    
+    // Any thread
+    void update(String user, boolean isTyping, long now) {
+        if (isTyping) {
+            typing.put(user, now);
+        } else {
+            typing.remove(user);
+        }
+    }
+    
+    void remove(String user) {
+        typing.remove(user);
+    }
+    
+    // Any thread; an empty list means nobody on that node is typing
+    void updateRemote(String node, List<String> users) {
+        if (users.isEmpty()) {
+            remote.remove(node);
+        } else {
+            remote.put(node, users);
+        }
+    }
+    
+    void removeRemote(String node) {
+        remote.remove(node);
+    }
+    
+    // A peer that just connected has heard nothing yet; the next pollLocal tells it
+    void resendLocal() {
+        resend = true;
+    }
+    
+    // Called once per tick, always from the same thread; null if nothing changed
+    EncodedMessage poll(long now) {
+        if (typing.isEmpty() && remote.isEmpty() && lastSent.isEmpty()) {
+            return null;
+        }
+        typing.values().removeIf(updated -> now - updated >= expiryMillis);
+        
+        List<String> users = new ArrayList<>(typing.keySet());
+        remote.values().forEach(users::addAll);
+        Collections.sort(users);
+        if (users.size() > MAX_NAMES) {
+            int more = users.size() - MAX_NAMES;
+            users = new ArrayList<>(users.subList(0, MAX_NAMES));
+            users.add("+" + more);
+        }
+        String current = String.join(",", users);
+        if (current.equals(lastSent)) {
+            return null;
+        }
+        lastSent = current;
+        return frame(current, now);
+    }
+    
+    // This node's own typing users, all of them, for cluster peers; null if
+    // unchanged. Called right after poll, which has expired stale users.
+    EncodedMessage pollLocal(long now) {
+        boolean again = resend;
+        resend = false;
+        if (typing.isEmpty() && lastRelayed.isEmpty()) {
+            return null;
+        }
+        
+        List<String> users = new ArrayList<>(typing.keySet());
+        Collections.sort(users);
+        String current = String.join(",", users);
+        if (current.equals(lastRelayed) && (!again || current.isEmpty())) {
+            return null;
+        }
+        lastRelayed = current;
+        return frame(current, now);
+    }
+    
+    private EncodedMessage frame(String users, long now) {
+        ChatMessage message = new ChatMessage(MessageType.TYPING, users, users.isEmpty() ? "stopped" : "typing", now);
+        message.setRoom(room);
+        return new EncodedMessage(message);
+    }
+}
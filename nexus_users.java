@@ -0,0 +1,435 @@
+// Nexus - UserStore.java
+// Created by Michael Semera
+// File-backed accounts: an append-only journal plus a compacted binary snapshot
+
+package com.michaelsemera.nexus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+// ==================== UserStore Class ====================
+// Accounts come from two places: the snapshot, kept as its raw bytes plus an
+// open-addressing index of record offsets, and a ConcurrentHashMap of
+// accounts added since. Loading a snapshot therefore allocates nothing per
+// account; a record is only decoded when its user logs in.
+//
+// With a directory configured, every new account is queued for a background
+// writer, which appends the whole batch to the journal and syncs once (group
+// commit); registrations complete when their batch is durable, without a
+// thread waiting on it. Once the journal passes its size limit the writer
+// compacts: the old snapshot's records are copied as they are, the recent
+// accounts are appended, the new file replaces the old one atomically and
+// the journal starts over.
+//
+// <dir>/users.snapshot
+//   int      MAGIC
+//   int      number of accounts
+//   ...      one account record per account
+//   int      CRC32C of everything before it
+// <dir>/users.journal, records of
+//   int      length of the account record
+//   int      CRC32C of the account record
+//   ...      account record
+// where an account record is
+//   short    name length, then the UTF-8 name
+//   byte     salt length, then the salt
+//   int      PBKDF2 iterations
+//   byte     hash length, then the hash
+final class UserStore implements Closeable {
+    
+    private static final int MAGIC = 0x4E585553;    // "NXUS"
+    private static final int MAX_BATCH = 1024;
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_NAME_BYTES = 0xFFFF;
+    private static final String SNAPSHOT = "users.snapshot";
+    private static final String JOURNAL = "users.journal";
+    
+    // Wakes the writer on close; interrupting it would close the journal channel
+    private static final Append CLOSE_MARKER = new Append(null, null);
+    
+    private final Path directory;
+    private final long compactBytes;
+    private final Map<String, PasswordHash> recent = new ConcurrentHashMap<>();    // Not in the snapshot yet
+    private final LinkedBlockingQueue<Append> pending = new LinkedBlockingQueue<>();
+    
+    // Registrations hold the read lock across check-and-add; compaction holds the
+    // write lock while it moves recent accounts into the new snapshot
+    private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private FileChannel journal;
+    private Thread writer;
+    private volatile boolean closed;
+    
+    private UserStore(Path directory, long compactBytes) {
+        this.directory = directory;
+        this.compactBytes = compactBytes;
+    }
+    
+    // In memory only when no user directory is configured
+    static UserStore open(ServerConfig config) throws IOException {
+        Path directory = config.getUserDirectory();
+        if (directory == null) {
+            return new UserStore(null, 0);
+        }
+        
+        Files.createDirectories(directory);
+        long started = System.nanoTime();
+        UserStore store = new UserStore(directory, config.getUserCompactBytes());
+        Path snapshotFile = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshotFile)) {
+            store.snapshot = Snapshot.load(Files.readAllBytes(snapshotFile));
+        }
+        int replayed = store.replayJournal();
+        
+        System.out.println("👤 User store: " + store.size() + " account(s) in " + directory.toAbsolutePath() +
+            " (" + replayed + " from the journal), loaded in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+        
+        store.writer = new Thread(store::writeLoop, "nexus-users");
+        store.writer.setDaemon(true);
+        store.writer.start();
+        return store;
+    }
+    
+    PasswordHash get(String user) {
+        // Compaction publishes the new snapshot before pruning recent, so checking
+        // recent first never misses an account
+        PasswordHash hash = recent.get(user);
+        return hash != null ? hash : snapshot.get(user.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    boolean isEmpty() {
+        return snapshot.count == 0 && recent.isEmpty();
+    }
+    
+    int size() {
+        return snapshot.count + recent.size();
+    }
+    
+    // Completes with false if the name is taken, with true once the account is durable.
+    // Fails if it could not be written; the account is then removed again.
+    CompletableFuture<Boolean> add(String user, PasswordHash hash) {
+        byte[] name = user.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Username is too long"));
+        }
+        
+        swapLock.readLock().lock();
+        try {
+            if (snapshot.get(name) != null || recent.putIfAbsent(user, hash) != null) {
+                return CompletableFuture.completedFuture(false);
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        if (directory == null) {
+            return CompletableFuture.completedFuture(true);
+        }
+        
+        Append append = new Append(user, hash);
+        if (closed) {
+            append.done.completeExceptionally(new IOException("User store is closed"));
+        } else {
+            pending.add(append);
+        }
+        return append.done.handle((ignored, error) -> {
+            if (error != null) {
+                recent.remove(user, hash);
+                throw new IllegalStateException("Could not save account " + user, error);
+            }
+            return true;
+        });
+    }
+    
+    // Stops accepting accounts, writes and syncs what is queued
+    @Override
+    public void close() throws IOException {
+        if (closed || writer == null) {
+            return;
+        }
+        closed = true;
+        pending.add(CLOSE_MARKER);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+    
+    // Opens the journal for appending after its last valid record
+    private int replayJournal() throws IOException {
+        journal = FileChannel.open(directory.resolve(JOURNAL),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer records = journal.map(FileChannel.MapMode.READ_ONLY, 0, journal.size());
+        CRC32C crc = new CRC32C();
+        int replayed = 0;
+        
+        while (records.remaining() >= RECORD_HEADER) {
+            int start = records.position();
+            int length = records.getInt();
+            int checksum = records.getInt();
+            if (length <= 0 || length > records.remaining()) {
+                records.position(start);
+                break;
+            }
+            ByteBuffer record = records.slice().limit(length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                records.position(start);
+                break;
+            }
+            
+            // A crash between writing a snapshot and truncating the journal leaves duplicates
+            byte[] name = new byte[record.getShort() & 0xFFFF];
+            record.get(name);
+            if (snapshot.get(name) == null) {
+                recent.put(new String(name, StandardCharsets.UTF_8), readHash(record));
+                replayed++;
+            }
+            records.position(start + RECORD_HEADER + length);
+        }
+        
+        // Drop a torn tail so new records follow the last good one
+        if (records.position() < journal.size()) {
+            System.out.println("👤 Discarding " + (journal.size() - records.position()) + " byte(s) of torn user journal");
+            journal.truncate(records.position());
+        }
+        journal.position(records.position());
+        return replayed;
+    }
+    
+    // The rest of an account record, after its name
+    private static PasswordHash readHash(ByteBuffer buffer) {
+        byte[] salt = new byte[buffer.get() & 0xFF];
+        buffer.get(salt);
+        int iterations = buffer.getInt();
+        byte[] hash = new byte[buffer.get() & 0xFF];
+        buffer.get(hash);
+        return new PasswordHash(salt, iterations, hash);
+    }
+    
+    private static int accountSize(byte[] name, PasswordHash hash) {
+        return 2 + name.length + 1 + hash.getSalt().length + 4 + 1 + hash.getHash().length;
+    }
+    
+    private static void writeAccount(ByteBuffer buffer, byte[] name, PasswordHash hash) {
+        buffer.putShort((short) name.length).put(name);
+        buffer.put((byte) hash.getSalt().length).put(hash.getSalt());
+        buffer.putInt(hash.getIterations());
+        buffer.put((byte) hash.getHash().length).put(hash.getHash());
+    }
+    
+    private void writeLoop() {
+        List<Append> batch = new ArrayList<>();
+        CRC32C crc = new CRC32C();
+        
+        while (!closed || !pending.isEmpty()) {
+            try {
+                batch.add(pending.take());
+                pending.drainTo(batch, MAX_BATCH - 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            
+            try {
+                int size = 0;
+                for (Append append : batch) {
+                    if (append != CLOSE_MARKER) {
+                        size += RECORD_HEADER + accountSize(append.name, append.hash);
+                    }
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(size);
+                for (Append append : batch) {
+                    if (append == CLOSE_MARKER) {
+                        continue;
+                    }
+                    int start = buffer.position();
+                    buffer.position(start + RECORD_HEADER);
+                    writeAccount(buffer, append.name, append.hash);
+                    
+                    crc.reset();
+                    crc.update(buffer.duplicate().position(start + RECORD_HEADER).limit(buffer.position()));
+                    buffer.putInt(start, buffer.position() - start - RECORD_HEADER);
+                    buffer.putInt(start + 4, (int) crc.getValue());
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    journal.write(buffer);
+                }
+                journal.force(false);
+                
+                for (Append append : batch) {
+                    append.done.complete(null);
+                }
+                if (journal.size() >= compactBytes) {
+                    compact();
+                }
+                
+            } catch (IOException | RuntimeException e) {
+                System.err.println("User store write failed: " + e);
+                for (Append append : batch) {
+                    append.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+    
+    // Every journaled account is in recent by now, so the new snapshot covers the
+    // whole journal. Accounts still queued are in it too and get journaled again,
+    // which replay ignores.
+    private void compact() throws IOException {
+        Snapshot old = snapshot;
+        List<byte[]> names = new ArrayList<>(recent.size());
+        List<PasswordHash> hashes = new ArrayList<>(recent.size());
+        int added = 0;
+        for (Map.Entry<String, PasswordHash> account : recent.entrySet()) {
+            byte[] name = account.getKey().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            hashes.add(account.getValue());
+            added += accountSize(name, account.getValue());
+        }
+        
+        // The old records are copied as they are, without decoding
+        int oldRecords = old.bytes.length - Snapshot.HEADER - Snapshot.TRAILER;
+        ByteBuffer buffer = ByteBuffer.allocate(Snapshot.HEADER + oldRecords + added + Snapshot.TRAILER);
+        buffer.putInt(MAGIC).putInt(old.count + names.size());
+        buffer.put(old.bytes, Snapshot.HEADER, oldRecords);
+        for (int i = 0; i < names.size(); i++) {
+            writeAccount(buffer, names.get(i), hashes.get(i));
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        
+        Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer contents = ByteBuffer.wrap(buffer.array());
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        
+        Snapshot compacted = Snapshot.load(buffer.array());
+        swapLock.writeLock().lock();
+        try {
+            snapshot = compacted;
+            for (int i = 0; i < names.size(); i++) {
+                recent.remove(new String(names.get(i), StandardCharsets.UTF_8), hashes.get(i));
+            }
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        
+        journal.truncate(0);
+        journal.position(0);
+        journal.force(true);
+        System.out.println("👤 Compacted user store: " + compacted.count + " account(s)");
+    }
+    
+    // An immutable snapshot file with an index from name to record offset
+    private static final class Snapshot {
+        static final int HEADER = 8;
+        static final int TRAILER = 4;
+        static final Snapshot EMPTY = new Snapshot(new byte[HEADER + TRAILER], 0, new int[1]);
+        
+        private final byte[] bytes;
+        private final int count;
+        private final int[] slots;      // Record offset + 1, or 0 for an empty slot
+        
+        private Snapshot(byte[] bytes, int count, int[] slots) {
+            this.bytes = bytes;
+            this.count = count;
+            this.slots = slots;
+        }
+        
+        static Snapshot load(byte[] bytes) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int end = bytes.length - TRAILER;
+            if (end < HEADER || buffer.getInt(0) != MAGIC) {
+                throw new IOException(SNAPSHOT + " is not a user snapshot");
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(bytes, 0, end);
+            if ((int) crc.getValue() != buffer.getInt(end)) {
+                throw new IOException(SNAPSHOT + " is corrupt (checksum mismatch)");
+            }
+            
+            // Load factor at most 1/2 keeps probe sequences short
+            int count = buffer.getInt(4);
+            int[] slots = new int[Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1];
+            int mask = slots.length - 1;
+            int offset = HEADER;
+            for (int i = 0; i < count; i++) {
+                if (offset + 2 > end) {
+                    throw new IOException(SNAPSHOT + " holds fewer accounts than its header says");
+                }
+                int nameLength = buffer.getShort(offset) & 0xFFFF;
+                int slot = hash(bytes, offset + 2, nameLength) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = offset + 1;
+                
+                int saltAt = offset + 2 + nameLength;
+                int hashAt = saltAt + 1 + (bytes[saltAt] & 0xFF) + 4;
+                offset = hashAt + 1 + (bytes[hashAt] & 0xFF);
+            }
+            return new Snapshot(bytes, count, slots);
+        }
+        
+        PasswordHash get(byte[] name) {
+            int mask = slots.length - 1;
+            for (int slot = hash(name, 0, name.length) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int offset = slots[slot] - 1;
+                int nameLength = ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+                if (Arrays.equals(bytes, offset + 2, offset + 2 + nameLength, name, 0, name.length)) {
+                    return readHash(ByteBuffer.wrap(bytes, offset + 2 + nameLength, bytes.length - offset - 2 - nameLength));
+                }
+            }
+            return null;
+        }
+        
+        // FNV-1a, spread so neighbouring names land in different slots
+        private static int hash(byte[] bytes, int from, int length) {
+            int hash = 0x811C9DC5;
+            for (int i = from; i < from + length; i++) {
+                hash = (hash ^ (bytes[i] & 0xFF)) * 0x01000193;
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+    
+    private static final class Append {
+        private final byte[] name;
+        private final PasswordHash hash;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        
+        Append(String user, PasswordHash hash) {
+            this.name = user != null ? user.getBytes(StandardCharsets.UTF_8) : null;
+            this.hash = hash;
+        }
+    }
+}
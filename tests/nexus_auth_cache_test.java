@@ -0,0 +1,87 @@
+// Nexus - AuthCacheTest.java
+// Created by Michael Semera
+// Checks that a repeat login is served from the cache once its account is in the snapshot
+//
+// Run:
+//   java -cp bin com.michaelsemera.nexus.AuthCacheTest
+
+package com.michaelsemera.nexus;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// ==================== AuthCacheTest Class ====================
+// A compaction threshold of one byte moves every account into the snapshot
+// as soon as it is journaled. Shutting down the auth pool before the second
+// login means only the cache can answer it: a miss fails with a rejected task.
+class AuthCacheTest {
+    
+    private static final long TIMEOUT_MILLIS = 5000;
+    
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("nexus-auth-cache");
+        try {
+            run(directory);
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        System.out.println("AuthCacheTest passed");
+    }
+    
+    private static void run(Path directory) throws Exception {
+        ServerConfig config = ServerConfig.fromArgs(new String[] {
+            "--user-dir=" + directory,
+            "--user-compact-bytes=1",
+            "--auth-iterations=1000"
+        });
+        Path journal = directory.resolve("users.journal");
+        
+        try (UserStore users = UserStore.open(config)) {
+            Authenticator auth = new Authenticator(config, users);
+            try {
+                check(auth.register("127.0.0.1", "alice", "password").get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    == Authenticator.Result.SUCCESS, "Registration failed");
+                awaitCompaction(journal);
+                check(auth.login("127.0.0.1", "alice", "password").get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    == Authenticator.Result.SUCCESS, "First login failed");
+                
+                // A second account rewrites the snapshot, so alice's record is decoded afresh
+                check(auth.register("127.0.0.1", "bob", "password").get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    == Authenticator.Result.SUCCESS, "Second registration failed");
+                awaitCompaction(journal);
+                
+                auth.shutdown();
+                CompletableFuture<Authenticator.Result> repeat = auth.login("127.0.0.1", "alice", "password");
+                check(repeat.isDone() && !repeat.isCompletedExceptionally(), "Repeat login went to the auth pool");
+                check(repeat.join() == Authenticator.Result.SUCCESS, "Repeat login was " + repeat.join());
+                
+                CompletableFuture<Authenticator.Result> wrong = auth.login("127.0.0.1", "alice", "wrong");
+                check(wrong.isCompletedExceptionally(), "Wrong password was answered from the cache");
+            } finally {
+                auth.shutdown();
+            }
+        }
+    }
+    
+    // Compaction truncates the journal once the new snapshot is in place
+    private static void awaitCompaction(Path journal) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (Files.size(journal) > 0) {
+            check(System.currentTimeMillis() < deadline, "User store never compacted");
+            Thread.sleep(10);
+        }
+    }
+    
+    private static void check(boolean condition, String failure) {
+        if (!condition) {
+            throw new AssertionError(failure);
+        }
+    }
+}
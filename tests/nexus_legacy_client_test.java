@@ -0,0 +1,201 @@
+// Nexus - LegacyClientTest.java
+// Created by Michael Semera
+// Checks that a client from the original release can still log in and chat
+//
+// Run:
+//   java -cp bin com.michaelsemera.nexus.LegacyClientTest
+
+package com.michaelsemera.nexus;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// ==================== LegacyClientTest Class ====================
+// OriginalClient below does what the original ChatClient did on the
+// network: one ObjectOutputStream and one ObjectInputStream for the whole
+// connection, with ChatMessage serialized as that release declared it. It
+// chats with a current NexusClient through a real server in each mode.
+class LegacyClientTest {
+    
+    private static final int PORT = 5096;
+    private static final long TIMEOUT_MILLIS = 5000;
+    
+    public static void main(String[] args) throws Exception {
+        run("reactor", PORT);
+        run("thread_pool", PORT + 1);
+        System.out.println("LegacyClientTest passed");
+    }
+    
+    private static void run(String mode, int port) throws Exception {
+        ChatServer server = new ChatServer(ServerConfig.fromArgs(new String[] {
+            "--mode=" + mode,
+            "--port=" + port,
+            "--auth-iterations=1000",
+            "--jmx=false"
+        }));
+        Thread serverThread = new Thread(server::start, "test-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(1000);
+        
+        BlockingQueue<ChatMessage> bobInbox = new LinkedBlockingQueue<>();
+        NexusClient bob = new NexusClient("localhost", port);
+        bob.addListener(bobInbox::add);
+        
+        try (OriginalClient alice = new OriginalClient(port)) {
+            ChatMessage authRequest = alice.read();
+            check(authRequest.getType() == MessageType.AUTH_REQUEST, mode + ": first message is " + authRequest.getType());
+            check("Please authenticate".equals(authRequest.getContent()), mode + ": protocol offer sent to a legacy client");
+            
+            alice.write(new ChatMessage(MessageType.LOGIN, "alice", "alice:password", "12:00:00"));
+            check(alice.read().getType() == MessageType.AUTH_SUCCESS, mode + ": legacy login failed");
+            bob.login("bob", "password").get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            
+            // The second message refers back to the first one's class descriptors
+            alice.write(new ChatMessage(MessageType.CHAT, "alice", "Hello from the original client", "12:00:01"));
+            alice.write(new ChatMessage(MessageType.CHAT, "alice", "Still here", "12:00:02"));
+            expect(bobInbox, MessageType.CHAT, "alice", "Hello from the original client");
+            expect(bobInbox, MessageType.CHAT, "alice", "Still here");
+            alice.expect(MessageType.CHAT, "alice", "Still here");
+            
+            bob.sendChat(null, "Hi alice").get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            alice.expect(MessageType.CHAT, "bob", "Hi alice");
+            
+            alice.write(new ChatMessage(MessageType.PRIVATE_MESSAGE, "alice", "bob:Just for you", "12:00:03"));
+            expect(bobInbox, MessageType.PRIVATE_MESSAGE, "alice", "Just for you");
+            
+            alice.write(new ChatMessage(MessageType.DISCONNECT, "alice", "", "12:00:04"));
+            expect(bobInbox, MessageType.USER_LEFT, "SERVER", "alice has left the chat");
+            
+        } finally {
+            bob.close();
+            server.shutdown();
+        }
+        System.out.println(mode + ": ok");
+    }
+    
+    private static void expect(BlockingQueue<ChatMessage> inbox, MessageType type, String sender, String content)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        ChatMessage message;
+        do {
+            message = inbox.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            check(message != null, "No " + type + " from " + sender + ": " + content);
+        } while (!matches(message, type, sender, content));
+    }
+    
+    private static boolean matches(ChatMessage message, MessageType type, String sender, String content) {
+        return message.getType() == type && sender.equals(message.getSender()) && content.equals(message.getContent());
+    }
+    
+    private static void check(boolean condition, String failure) {
+        if (!condition) {
+            throw new AssertionError(failure);
+        }
+    }
+    
+    // ==================== OriginalClient ====================
+    // The original ChatClient's stream handling: the output stream is opened
+    // and flushed first, every write is flushed, and nothing is ever reset
+    private static final class OriginalClient implements AutoCloseable {
+        
+        private final Socket socket;
+        private final ObjectOutputStream out;
+        private final ObjectInputStream in;
+        
+        OriginalClient(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setSoTimeout((int) TIMEOUT_MILLIS);
+            out = new OriginalObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            in = new ObjectInputStream(socket.getInputStream());
+        }
+        
+        void write(ChatMessage message) throws IOException {
+            out.writeObject(message);
+            out.flush();
+        }
+        
+        // That release's MessageType ended at SERVER_MESSAGE; it can't read anything newer
+        ChatMessage read() throws IOException, ClassNotFoundException {
+            ChatMessage message = (ChatMessage) in.readObject();
+            check(message.getType().compareTo(MessageType.SERVER_MESSAGE) <= 0,
+                "Legacy client was sent " + message.getType());
+            return message;
+        }
+        
+        void expect(MessageType type, String sender, String content) throws IOException, ClassNotFoundException {
+            while (!matches(read(), type, sender, content)) {
+                // Skip join notices and user lists
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+    
+    // ChatMessage as the original release declared it: these four fields and
+    // no writeObject method
+    private static final class OriginalChatMessage implements Serializable {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final MessageType type;
+        private final String sender;
+        private final String content;
+        private final String timestamp;
+        
+        OriginalChatMessage(ChatMessage message) {
+            this.type = message.getType();
+            this.sender = message.getSender();
+            this.content = message.getContent();
+            this.timestamp = message.getTimestamp();
+        }
+    }
+    
+    // Writes each ChatMessage as an OriginalChatMessage under ChatMessage's
+    // name, so the bytes match what the original ChatClient sent
+    private static final class OriginalObjectOutputStream extends ObjectOutputStream {
+        
+        OriginalObjectOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+        
+        @Override
+        protected Object replaceObject(Object obj) {
+            return obj instanceof ChatMessage ? new OriginalChatMessage((ChatMessage) obj) : obj;
+        }
+        
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            if (desc.forClass() != OriginalChatMessage.class) {
+                super.writeClassDescriptor(desc);
+                return;
+            }
+            writeUTF(ChatMessage.class.getName());
+            writeLong(desc.getSerialVersionUID());
+            writeByte(ObjectStreamConstants.SC_SERIALIZABLE);
+            writeShort(desc.getFields().length);
+            for (ObjectStreamField field : desc.getFields()) {
+                writeByte(field.getTypeCode());
+                writeUTF(field.getName());
+                if (!field.isPrimitive()) {
+                    writeObject(field.getTypeString());
+                }
+            }
+        }
+    }
+}